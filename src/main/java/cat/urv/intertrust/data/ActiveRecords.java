@@ -0,0 +1,116 @@
+package cat.urv.intertrust.data;
+import java.util.*;
+
+/**
+ * Set of the records of a dataset still to be processed, as used by the
+ * microaggregation methods. Records are removed in O(m) by clearing their bit
+ * and subtracting their values from running sums, so the centroid of the set
+ * costs O(m) instead of a pass over the remaining records. The records are
+ * always visited in increasing order of their index.
+ */
+public class ActiveRecords {
+
+	private Dataset dataset;
+	private int numAtts;
+	private BitSet active;
+	private int size;
+	private double[] sums;
+
+	/**
+	 * Constructor. All the records of the dataset are active.
+	 * @param dataset the dataset.
+	 */
+	public ActiveRecords(Dataset dataset) {
+		this.dataset = dataset;
+		this.numAtts = dataset.numAttributes();
+		this.size = dataset.numRecords();
+		this.active = new BitSet(size);
+		this.active.set(0, size);
+		this.sums = new double[numAtts];
+
+		for (int i = 0; i < size; i++) {
+			Record r = dataset.getRecord(i);
+			for (int d = 0; d < numAtts; d++) sums[d] += r.getValue(d);
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Checks if a record is still active.
+	 * @param record the index of the record in the dataset.
+	 * @return TRUE if the record has not been removed.
+	 */
+	public boolean contains(int record) {
+		return active.get(record);
+	}
+
+	/**
+	 * Removes a record from the set.
+	 * @param record the index of the record in the dataset.
+	 */
+	public void remove(int record) {
+		if (!active.get(record)) return;
+		active.clear(record);
+		size--;
+
+		Record r = dataset.getRecord(record);
+		for (int d = 0; d < numAtts; d++) sums[d] -= r.getValue(d);
+	}
+
+	/**
+	 * Removes a list of records from the set.
+	 * @param records the indexes of the records in the dataset.
+	 */
+	public void removeAll(List<Integer> records) {
+		for (int i : records) remove(i);
+	}
+
+	/**
+	 * Returns the average record of the active records.
+	 * @return the centroid.
+	 */
+	public Record getCentroid() {
+		Record centroid = new Record(numAtts);
+		for (int d = 0; d < numAtts; d++) {
+			centroid.setAttribute(d, sums[d] / size);
+		}
+		return centroid;
+	}
+
+	/**
+	 * Returns the index of the first active record at or after a given one.
+	 * @param from the index to start from.
+	 * @return the index of the record, or -1 if there is none.
+	 */
+	public int next(int from) {
+		return active.nextSetBit(from);
+	}
+
+	/**
+	 * Returns the indexes of the active records in increasing order.
+	 * @return the indexes of the records.
+	 */
+	public int[] toArray() {
+		int[] ids = new int[size];
+		int n = 0;
+		for (int i = active.nextSetBit(0); i >= 0; i = active.nextSetBit(i + 1)) ids[n++] = i;
+		return ids;
+	}
+
+	/**
+	 * Returns the indexes of the active records in increasing order.
+	 * @return the list of indexes.
+	 */
+	public List<Integer> toList() {
+		List<Integer> ids = new ArrayList<Integer>(size);
+		for (int i = active.nextSetBit(0); i >= 0; i = active.nextSetBit(i + 1)) ids.add(i);
+		return ids;
+	}
+}
@@ -1,6 +1,4 @@
 package cat.urv.intertrust.data;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Random;
 
 
@@ -59,6 +57,15 @@ public class Attribute {
 		this.confidentiality = CONFIDENTIALITY.valueOf(type);
 	}
 	
+	/**
+	 * Returns the confidentiality of the attribute ("confidential",
+	 * "quasi_identifier" or "identifier").
+	 * @return the confidentiality of the attribute.
+	 */
+	public String getConfidentiality() {
+		return confidentiality.toString();
+	}
+	
 	public void setPredictor(String type) {
 		this.predictor = PREDICTOR.valueOf(type);
 	}
@@ -132,14 +139,14 @@ public class Attribute {
 	/**
 	 * Returns a random value of the attribute.
 	 * @param dataset the dataset
+	 * @param r the random generator.
 	 * @return a random value of the attribute.
 	 */
-	public Object getRandom(Dataset dataset) {
-		Random r = new Random(System.nanoTime());
-		
-		List<Double> aux = Utilities.listStringToDouble(dataset.getAttributeValues(this.getNum()));
-		double maxV = Utilities.max(aux);
-		double minV = Utilities.min(aux);
+	public Object getRandom(Dataset dataset, Random r) {
+		//missing values not imputed yet are stored as NaN, and ignored by the range
+		Statistics s = dataset.getStatistics();
+		double maxV = s.getMax(this.getNum());
+		double minV = s.getMin(this.getNum());
 		
 		return r.nextDouble()*(maxV-minV)+minV;				
 	}
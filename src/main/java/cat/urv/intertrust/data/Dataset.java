@@ -2,7 +2,6 @@ package cat.urv.intertrust.data;
 import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.*;
 
@@ -14,8 +13,9 @@ public class Dataset {
 	
 	private List<Record> data;	//stores the attribute's values
 	private List<Attribute> variables; //stores the name of the variables and the type
-	private List<Double> valueVarAttributes = new ArrayList<Double>(); //stores the variances of all Records in Dataset.
-	private List<Double> valueMeanAttributes = new ArrayList<Double>(); //stores the means of all Records in Dataset.
+	private List<Double> valueVarAttributes = new ArrayList<Double>(); //stores the variances given with addTotalVariance.
+	private Statistics statistics; //cached statistics of the records, discarded when the dataset changes.
+	private DistanceKernel kernel; //cached SSE-distance standardized by the variances of the dataset.
 	
 	/**
      * Default constructor.
@@ -37,6 +37,17 @@ public class Dataset {
 	}
 	
 	
+	/**
+     * Constructor of a dataset stored in a block of primitive values.
+     * @param block the values of the dataset.
+     * @param variables list of attributes.
+     */
+	public Dataset(RecordBlock block, List<Attribute> variables) {
+		this.data = block.toRecords();
+		this.variables = variables;
+	}
+	
+	
 	public Dataset(Dataset dst) {
 		this.data = new ArrayList<Record>(dst.toList());
 		this.variables = new ArrayList<Attribute>(dst.getAttributeList());
@@ -87,6 +98,7 @@ public class Dataset {
 			new Error("Dataset.addRecord: All records in data set must have the same size");
 		
 		data.add(r);				
+		invalidateStatistics();
 	}
 		
     /**
@@ -102,6 +114,7 @@ public class Dataset {
     
     public void setRecord(int position, Record rec) {
     	data.set(position, rec);
+    	invalidateStatistics();
     }
     
     public void setQI (List<String> attributes) {
@@ -129,6 +142,7 @@ public class Dataset {
     public void removeRecord (Record rec) {
     	if (data==null) new Error("Dataset.removeRecord: No data found");
     	data.remove(rec);
+    	invalidateStatistics();
     }
     
     
@@ -136,31 +150,44 @@ public class Dataset {
     	for (Record rec : list) {
     		data.remove(rec);
     	}
+    	invalidateStatistics();
     }
     /**
      * Returns a string representation of the dataset.
      * @return a string representation of the dataset.
      */
     public String toString() {
-    	String s="";
+    	StringBuilder sb = new StringBuilder();
     	for (Record rec : this.data) {
-    		s += rec.toString()+"\n";
+    		rec.appendTo(sb, ", ").append('\n');
     	}
-    	return s;
+    	return sb.toString();
     }
     
     /** Writes a File with all the records of the Dataset. **/
     public void toFile(String namefile) {
-     	FileWriter f = null;		
-		
+    	toFile(namefile, false);
+    }
+    
+    /**
+     * Writes a File with all the records of the Dataset, separated by ", ".
+     * @param namefile the name of the file.
+     * @param channel TRUE to write the file through a FileChannel.
+     */
+    public void toFile(String namefile, boolean channel) {
+    	writeRecords(namefile, ", ", false, channel);
+    }
+    
+    private void writeRecords(String namefile, String separator, boolean decimalComma, boolean channel) {
+    	RecordWriter writer = null;
+    	
 		try {
-			f = new FileWriter (namefile);
-		
-			for (Record rec : this.data) {
-	    		f.write(rec.toString()+"\n");
-	    	}
-			f.close();		
-	    
+			try {
+				writer = new RecordWriter(namefile, separator, decimalComma, channel);
+				writer.write(this);
+			} finally {
+				if (writer != null) writer.close();
+			}
 		}
 		catch (IOException e) {
 			e.printStackTrace();
@@ -171,23 +198,8 @@ public class Dataset {
     	List<Attribute> confidentials = new ArrayList<Attribute>();
     	confidentials.add(confidential);
     	
-    	List<Record> records = new ArrayList<Record>();
-    	for (Record rec : data) {
-        	List<Double> atts = new ArrayList<Double>();
-        	int i = 0;
-    		for (Attribute a : getAttributeList()) {
-        		if (a.getName().equalsIgnoreCase(confidential.getName())) atts.add(rec.getAttribute(i));
-        		i++;
-        	}
-        	
-    		Record r = new Record(atts);
-    		r.setPosDataset(rec.getPosDataset());
-    		r.setGroup(rec.getGroup());
-    		
-    		records.add(r);
-    	}
-    	
-    	Dataset confDst = new Dataset(records, confidentials);
+    	Dataset confDst = new Dataset(project(confidentials), confidentials);
+    	copyPositions(confDst);
     	confDst.loadVariances(false);
     	    	
     	return confDst;
@@ -199,34 +211,51 @@ public class Dataset {
     		if (a.isQuasiIdentifier()) quasiidentifiers.add(a);
     	}
     	
-    	List<Record> records = new ArrayList<Record>();
-    	for (Record rec : data) {
-        	List<Double> atts = new ArrayList<Double>();
-        	int i = 0;
-    		for (Attribute a : getAttributeList()) {
-        		if (a.isQuasiIdentifier()) atts.add(rec.getAttribute(i));
-        		i++;
-        	}
-        	
-    		Record r = new Record(atts);
-    		r.setPosDataset(rec.getPosDataset());
-    		r.setGroup(rec.getGroup());
-    		
-    		records.add(r);
-    	}
-    	
-    	Dataset qiDst = new Dataset(records, quasiidentifiers);
+    	Dataset qiDst = new Dataset(project(quasiidentifiers), quasiidentifiers);
+    	copyPositions(qiDst);
     	qiDst.loadVariances(false);
     	
     	return qiDst;
     }
     
+    /**
+     * Copies the values of some attributes of the dataset into a new block.
+     * The records keep their position in the dataset and their group.
+     * @param attributes the attributes to be copied.
+     * @return the block with the values of the attributes.
+     */
+    private RecordBlock project(List<Attribute> attributes) {
+    	RecordBlock block = new RecordBlock(attributes.size(), data.size());
+    	int[] positions = new int[attributes.size()];
+    	for (int j = 0; j < positions.length; j++) {
+    		positions[j] = variables.indexOf(attributes.get(j));
+    	}
+    	
+    	double[] row = new double[positions.length];
+    	for (Record rec : data) {
+    		for (int j = 0; j < positions.length; j++) {
+    			row[j] = rec.getValue(positions[j]);
+    		}
+    		block.add(row);
+    	}
+    	
+    	return block;
+    }
+    
+    private void copyPositions(Dataset projected) {
+    	for (int i = 0; i < data.size(); i++) {
+    		Record r = projected.getRecord(i);
+    		r.setPosDataset(data.get(i).getPosDataset());
+    		r.setGroup(data.get(i).getGroup());
+    	}
+    }
+    
     /**
      * Sets the attributes specification (name and type) from a file.
      * @param namefile the name of the file.
      * @return 
      */
-    void loadAttributes (String[] vars) throws Exception {
+    void loadAttributes (String[] vars) {
 		
     	try {
 			for (String var : vars) {	
@@ -241,75 +270,62 @@ public class Dataset {
     
     
     /**
-     * Sets the values of the dataset from a file.
+     * Sets the values of the dataset from a file. The file is read record by 
+     * record with a RecordReader and the values are parsed straight into the 
+     * dataset storage.
      * @param namefile the name of the file.
      */
     public void loadValues(String datafile) throws Exception{
-    	FileReader fdata = null;
-    	
-		fdata = new FileReader (datafile);
-		BufferedReader bdata = new BufferedReader(fdata);
-		
-		StringBuffer sb = new StringBuffer();
-		String[] array;
-		String[] values;
-		String line, attrValue;
-		Attribute attr;
-					
-		line=bdata.readLine();
-		loadAttributes(line.split("\t"));
-		
-		while((line=bdata.readLine())!=null) {
-			sb.append(line);
-			if (!line.endsWith(";")) sb.append(";");
-		}
-
-        //read the values	         
-         Record rec;
-         int i, numAttAdded;
-         
-         values = sb.toString().split(";");
-         
-         for (String v : values) {						
-			array = v.split(", ");
-			if (array.length == 1){
-				array = v.split("\t");
+		RecordReader reader = new RecordReader(datafile);
+		
+		try {
+			loadAttributes(reader.getHeader());
+			
+			double[] row = new double[variables.size()];
+			RecordBlock block = null;
+			
+			while (reader.next(row)) {
+				if (block == null) block = new RecordBlock(variables.size(), reader.estimateRecords());
+				block.add(row);
 			}
+			if (block == null) block = new RecordBlock(variables.size(), 0);
 			
-			 rec = new Record(variables.size());
-			 i = 0;
-			 numAttAdded = 0;
-			 for (String s : array) {
-				 attrValue = correctString(s);
-				 attrValue = attrValue.replace(',', '.');
-				 
-				 attr = this.getAttribute(i);
-			 	 
-				 if (attr.validValue(attrValue)) {
-					 rec.setAttribute(i, Double.valueOf(attrValue));
-					 numAttAdded++;
-				 } else if (attr.nullValue(attrValue)) {
-					 attrValue = attr.getRandom(this).toString();
-					 rec.setAttribute(i, Double.valueOf(attrValue));
-					 numAttAdded++;
-				 } 
-				 else new Exception("Dataset.loadValues: error loading record "+this.numRecords()+". Attribute "+i+" '"+attrValue+"' is not a correct value");
-				  
-				 i++;				 
-				 
-			 }
-			 
-			 if (numAttAdded == variables.size()) {
-				 this.addRecord(rec);
-			 }
-			 else {
-				 new Exception("Dataset.loadValues: Format error in "+datafile);
-			 }
-		 }	
-		
-		 fdata.close();
-    }    
+			addBlock(block);
+		} finally {
+			reader.close();
+		}
+    }
     
+    /**
+     * Sets the values of the dataset from a tab-separated file, parsed in parallel.
+     * @param datafile the name of the file.
+     * @param threads the number of threads used to parse the file.
+     */
+    public void loadMappedValues(String datafile, int threads) throws Exception {
+    	addBlock(new MappedLoader(datafile, threads).load(this));
+    }
+    
+    /**
+     * Adds the records of a block to the dataset and imputes its missing values, 
+     * stored as NaN, with random values of the attribute.
+     * @param block the block.
+     */
+    void addBlock(RecordBlock block) {
+		if (data.isEmpty()) data = block.toRecords();
+		else data.addAll(block.toRecords());
+		invalidateStatistics();
+		
+		Random rnd = null;
+		for (int r = 0; r < block.numRecords(); r++) {
+			for (int a = 0; a < block.numAttributes(); a++) {
+				if (Double.isNaN(block.get(r, a))) {
+					if (rnd == null) rnd = RandomStream.next("Dataset.imputation");
+					block.set(r, a, (Double)this.getAttribute(a).getRandom(this, rnd));
+				}
+			}
+		}
+		if (rnd != null) invalidateStatistics();
+    }
     
     /**
      * Sets the values of the dataset from a file.
@@ -396,7 +412,7 @@ public class Dataset {
      * @return the same String without blank character at the beginning and 
      * at the end.
      */
-	private String correctString (String text) {
+	static String correctString (String text) {
 		int ini=0, fi=0;		
 		
 		for (int i=0; i<text.length(); i++) {
@@ -448,15 +464,60 @@ public class Dataset {
     * of attributes.
     */
 	public void load(String datafile) throws Exception  {
+		load(datafile, 1);
+	}
+	
+   /**
+    * Loads and creates a dataset. When more than one thread is requested, the file 
+    * is memory-mapped and parsed in parallel; it must then be tab-separated, with 
+    * one record per line.
+    * @param datafile file containing the data values.
+    * @param threads number of threads used to parse the file.
+    */
+	public void load(String datafile, int threads) throws Exception  {
+		load(datafile, threads, false);
+	}
+	
+   /**
+    * Loads and creates a dataset, optionally through a binary cache of the parsed 
+    * file. The cache is read when it matches the file, and written otherwise. 
+    * The cache keeps the values imputed for the missing values, so they are not 
+    * imputed again with the seed of a later run.
+    * @param datafile file containing the data values.
+    * @param threads number of threads used to parse the file.
+    * @param cache TRUE to use the binary cache of the file.
+    */
+	public void load(String datafile, int threads, boolean cache) throws Exception  {
+		DatasetCache datasetCache = new DatasetCache(datafile);
+		
+		if (cache) {
+			try {
+				if (datasetCache.read(this)) {
+					System.out.println("Dataset loaded properly from "+datasetCache.getFile()+".");
+					return;
+				}
+			} catch (IOException e) {
+				System.out.println("Dataset cache could not be read, the file is parsed again: "+e.getMessage());
+			}
+		}
 
 		//create an empty dataset
 		new Dataset();		
 		
 		//load the values of the dataset
-		this.loadValues(datafile);
+		if (threads > 1) this.loadMappedValues(datafile, threads);
+		else this.loadValues(datafile);
 		
 		//load the total Variances of the different attributes.
 		this.loadVariances(false);
+		
+		if (cache) {
+			try {
+				datasetCache.write(this);
+			} catch (IOException e) {
+				System.out.println("Dataset cache could not be written: "+e.getMessage());
+			}
+		}
 		System.out.println("Dataset loaded properly.");
 	}
 
@@ -487,8 +548,7 @@ public class Dataset {
 		try {
 			
 			for (int i=0; i<this.numRecords(); i++) {
-				Record r = this.getRecord(i);
-				list.add(r.getAttribute(index).toString());
+				list.add(Double.toString(this.getRecord(i).getValue(index)));
 			}			
 			
 		} catch (IndexOutOfBoundsException e) {
@@ -500,36 +560,89 @@ public class Dataset {
 
 	/**
 	 * Loads the Variances of all the Attributes over the entire Dataset.
-	 * @param dataset
+	 * @param statistics TRUE to compute the covariance matrix too.
 	 */
 	public void loadVariances(boolean statistics) {
-		double s2 = 0;		
-		
-		for (int d = 0; d < this.numAttributes(); d++) {
-			s2 = Operations.numericVariance(this.getAttributeValues(d));
-			
-			valueVarAttributes.add(s2);
-		}
+		getStatistics(statistics);
 	}
 	
+	/**
+	 * Loads the Means of all the Attributes over the entire Dataset.
+	 */
 	public void loadMeans() {
-		valueMeanAttributes.clear();
-		
-		double s2 = 0;		
-		
-		for (int d = 0; d < this.numAttributes(); d++) {
-			s2 = Operations.averageString(this.getAttributeValues(d));
-			
-			valueVarAttributes.add(s2);
+		getStatistics();
+	}
+	
+	/**
+	 * Returns the statistics of the records of the dataset. They are computed in 
+	 * a single pass the first time they are needed and cached until the dataset 
+	 * is modified through its methods. Changes made directly on its records must be
+	 * followed by a call to invalidateStatistics().
+	 * @return the statistics of the dataset.
+	 */
+	public Statistics getStatistics() {
+		return getStatistics(false);
+	}
+	
+	/**
+	 * Returns the statistics of the records of the dataset.
+	 * @param covariance TRUE if the covariance matrix is needed.
+	 * @return the statistics of the dataset.
+	 */
+	public Statistics getStatistics(boolean covariance) {
+		Statistics s = statistics;
+		if (s == null || (covariance && !s.hasCovariance())) {
+			int numAtts = data.isEmpty() ? variables.size() : numAttributes();
+			s = Statistics.compute(data, numAtts, covariance);
+			statistics = s;
+		}
+		return s;
+	}
+	
+	/**
+	 * Discards the cached statistics of the dataset.
+	 */
+	public void invalidateStatistics() {
+		statistics = null;
+		kernel = null;
+	}
+	
+	/**
+	 * Sets the statistics of the attributes, computed elsewhere.
+	 * @param statistics the statistics of the dataset.
+	 */
+	void setStatistics(Statistics statistics) {
+		invalidateStatistics();
+		this.statistics = statistics;
+	}
+	
+	/**
+	 * Returns the SSE-distance standardized by the variances of the attributes 
+	 * in the dataset. It is cached together with the statistics.
+	 * @return the distance kernel of the dataset.
+	 */
+	public DistanceKernel getDistanceKernel() {
+		DistanceKernel k = kernel;
+		if (k == null) {
+			k = new DistanceKernel(this);
+			kernel = k;
 		}
+		return k;
 	}
 	
+	/**
+	 * Sets the variance of the next attribute, overriding the one computed from 
+	 * the records.
+	 * @param variance the variance.
+	 */
 	public void addTotalVariance(double variance) {
 		valueVarAttributes.add(variance);
+		kernel = null;
 	}
 	
 	public double getVarianceAttribute (int index) {
-		return valueVarAttributes.get(index);
+		if (index < valueVarAttributes.size()) return valueVarAttributes.get(index);
+		return getStatistics().getVariance(index);
 	}
 	
 	 /**
@@ -583,13 +696,17 @@ public class Dataset {
 	
 	/** GRufian (24-01-2012) --- Mean of the ith Attribute. **/
 	public double getMeanAttribute(int i) {
-		List<String> values = this.getAttributeValues(i);
-		List<Double> doubleValues = new ArrayList<Double>();
-		for (String v : values) {
-			doubleValues.add(Double.parseDouble(v));
-		}
-		
-		return Operations.average(doubleValues);
+		return getStatistics().getMean(i);
+	}
+	
+	/**
+	 * Returns the covariance between two attributes of the dataset.
+	 * @param i the first attribute.
+	 * @param j the second attribute.
+	 * @return the covariance.
+	 */
+	public double getCovarianceAttribute(int i, int j) {
+		return getStatistics(true).getCovariance(i, j);
 	}
 			
 	public static Double toIndexAttribute(String value, Attribute att) {
@@ -603,26 +720,22 @@ public class Dataset {
 
 
 	public Double getMeanValue(int i) {
-		return this.valueMeanAttributes.get(i);
+		return getStatistics().getMean(i);
 	}
 
 
 	public void toFileTab(String nameFile) {
-     	FileWriter f = null;		
-		
-		try {
-			f = new FileWriter (nameFile);
-		
-			for (Record rec : this.data) {
-	    		f.write(rec.toTabString()+"\n");
-	    	}
-			
-			f.close();		
-	    
-		}
-		catch (IOException e) {
-			e.printStackTrace();
-		}
+		toFileTab(nameFile, false);
+	}
+	
+    /**
+     * Writes a File with all the records of the Dataset, separated by tabs and 
+     * with ',' as decimal separator.
+     * @param nameFile the name of the file.
+     * @param channel TRUE to write the file through a FileChannel.
+     */
+	public void toFileTab(String nameFile, boolean channel) {
+		writeRecords(nameFile, "\t", true, channel);
 	}
 
 
@@ -651,8 +764,7 @@ public class Dataset {
 		double[] values = new double[data.size()];
 		
 		for (int i=0; i<this.numRecords(); i++) {
-			Record r = this.getRecord(i);
-			values[i] = Double.valueOf(r.getAttribute(attribute).toString());
+			values[i] = this.getRecord(i).getValue(attribute);
 		}	
 		
 		
@@ -676,15 +788,29 @@ public class Dataset {
 		double[][] result = new double[data.size()][this.getAttributeList().size()];
 		
 		for (int i = 0; i < data.size(); i++) {
-			List<Double> variables = data.get(i).getData();
-			for (int j = 0; j < variables.size(); j++) {
-				result[i][j] = Double.valueOf(variables.get(j).toString()).doubleValue();
-			}
+			data.get(i).copyValues(result[i], 0);
 		}
 		
 		return result;
 	}
 	
+	/**
+	 * Returns the values of the dataset by attribute, copied in a single pass
+	 * over the records.
+	 * @return an array with the values of each attribute.
+	 */
+	public double[][] toColumns() {
+		int n = data.size(), m = this.getAttributeList().size();
+		double[][] columns = new double[m][n];
+		
+		for (int i = 0; i < n; i++) {
+			Record r = data.get(i);
+			for (int j = 0; j < m; j++) columns[j][i] = r.getValue(j);
+		}
+		
+		return columns;
+	}
+	
 	public List<Integer> getPredictors() {
 		List<Integer> indexes = new ArrayList<Integer>();
 		
@@ -717,14 +843,33 @@ public class Dataset {
 			r.setAttribute(numAtt, column[i]);
 			i++;
 		}
+		invalidateStatistics();
+	}
+	
+	/**
+	 * Sets the values of several attributes in a single pass over the records.
+	 * @param numAtts the numbers of the attributes.
+	 * @param columns the values of each attribute, in the same order.
+	 */
+	public void setAttributes(List<Integer> numAtts, double[][] columns) {
+		int[] atts = new int[numAtts.size()];
+		for (int j = 0; j < atts.length; j++) atts[j] = numAtts.get(j);
+		
+		int i = 0;
+		for (Record r : data) {
+			for (int j = 0; j < atts.length; j++) r.setAttribute(atts[j], columns[j][i]);
+			i++;
+		}
+		invalidateStatistics();
 	}
 	
 	public void setAttribute(int numAtt, String[] column) {
 		int i = 0;
 		for (Record r : data) {
-			r.setAttribute(numAtt, Double.valueOf(column[i]));
+			r.setAttribute(numAtt, Double.parseDouble(column[i]));
 			i++;
 		}
+		invalidateStatistics();
 	}
 
 }
@@ -0,0 +1,384 @@
+package cat.urv.intertrust.data;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Binary cache of a parsed dataset. The cache file stores the names of the
+ * attributes, the per-attribute statistics and the values of the
+ * records, so later runs over the same input can skip the text parsing. The
+ * cache is tied to the size and the modification time of the source file and
+ * is discarded when any of them changes. The same format is used to move
+ * datasets between processes, in files not tied to any source.
+ *
+ * The cached values are the values of the dataset after the missing values
+ * ("?") have been imputed with random values, so a run with another seed
+ * reuses the imputed values of the run that wrote the cache. The cache file
+ * has to be deleted to impute them again.
+ *
+ * The file is read in chunks straight into the array of values of the
+ * records, without going through the text parser. It can also be read and
+ * written record by record, with a Reader and a Writer, so a dataset that
+ * does not fit in the heap can be moved through it.
+ *
+ * Layout (little endian): magic, version, source size, source modification
+ * time, number of attributes, number of records, attribute names (length and
+ * UTF-8 bytes), means, variances, minimums, maximums and the values, one record
+ * after the other.
+ */
+public class DatasetCache {
+
+	private static final int MAGIC = 0x50525654; //"PRVT"
+	private static final int VERSION = 2;
+	private static final String EXTENSION = ".cache";
+	private static final int CHUNK = 1 << 20;
+
+	private File source;
+	private File cache;
+
+	/**
+	 * Constructor.
+	 * @param datafile the file containing the data values.
+	 */
+	public DatasetCache(String datafile) {
+		this.source = new File(datafile);
+		this.cache = new File(datafile + EXTENSION);
+	}
+
+	/**
+	 * Constructor of a binary copy of a dataset that is not tied to a source file.
+	 * @param file the binary file.
+	 */
+	public DatasetCache(File file) {
+		this.cache = file;
+	}
+
+	/**
+	 * Returns the cache file.
+	 * @return the cache file.
+	 */
+	public File getFile() {
+		return cache;
+	}
+
+	/**
+	 * Loads the dataset from the cache file.
+	 * @param dataset the empty dataset where the values are loaded.
+	 * @return TRUE if the dataset was loaded, and FALSE if the cache does not
+	 * exist or does not match the source file.
+	 * @throws IOException if the cache cannot be read, is truncated or has
+	 * another format or version.
+	 */
+	public boolean read(Dataset dataset) throws IOException {
+		if (!cache.isFile()) return false;
+
+		Reader reader = new Reader();
+		try {
+			if (!reader.matchesSource()) return false;
+
+			int numAtts = reader.numAttributes(), numRecords = reader.numRecords();
+			double[] values = new double[numAtts * numRecords];
+			reader.readDoubles(values, 0, values.length);
+
+			dataset.loadAttributes(reader.getNames());
+			dataset.addBlock(new RecordBlock(values, numAtts, numRecords));
+			dataset.setStatistics(reader.getStatistics());
+			return true;
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Opens the cache file to be read record by record.
+	 * @return the reader, positioned at the first record.
+	 * @throws IOException if the cache cannot be read, is truncated or has
+	 * another format or version.
+	 */
+	public Reader openReader() throws IOException {
+		return new Reader();
+	}
+
+	/**
+	 * Writes a dataset into the cache file. The file is first written under a
+	 * temporary name, so an interrupted write never leaves a corrupt cache.
+	 * @param dataset the dataset loaded from the source file.
+	 */
+	public void write(Dataset dataset) throws IOException {
+		List<Attribute> attributes = dataset.getAttributeList();
+		String[] names = new String[attributes.size()];
+		for (int i = 0; i < names.length; i++) names[i] = attributes.get(i).getName();
+
+		Writer writer = openWriter(names, dataset.numRecords(), dataset.getStatistics());
+		try {
+			for (Record r : dataset.toList()) writer.write(r);
+			writer.finish();
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Opens the cache file to be written record by record. The number of
+	 * records and the statistics are written first, so they must be known
+	 * before the records.
+	 * @param names the names of the attributes.
+	 * @param numRecords the number of records that will be written.
+	 * @param statistics the statistics of the attributes.
+	 * @return the writer.
+	 */
+	public Writer openWriter(String[] names, int numRecords, Statistics statistics) throws IOException {
+		return new Writer(names, numRecords, statistics);
+	}
+
+	/**
+	 * Sequential reader of a cache file.
+	 */
+	public class Reader implements Closeable {
+
+		private FileInputStream in;
+		private FileChannel channel;
+		private ByteBuffer buffer;
+		private boolean matchesSource;
+		private String[] names;
+		private int numRecords, read;
+		private Statistics statistics;
+
+		private Reader() throws IOException {
+			this.in = new FileInputStream(cache);
+			try {
+				this.channel = in.getChannel();
+				this.buffer = ByteBuffer.allocateDirect(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+				buffer.limit(0);
+				readHeader();
+			} catch (IOException e) {
+				in.close();
+				throw e;
+			}
+		}
+
+		private void readHeader() throws IOException {
+			fill(32);
+			if (buffer.getInt() != MAGIC) throw new IOException("DatasetCache: "+cache+" is not a dataset cache");
+			int version = buffer.getInt();
+			if (version != VERSION) throw new IOException("DatasetCache: "+cache+" has version "+version+" instead of "+VERSION);
+			long sourceLength = buffer.getLong(), sourceModified = buffer.getLong();
+			matchesSource = (source == null || (sourceLength == source.length() && sourceModified == source.lastModified()));
+
+			int numAtts = buffer.getInt();
+			numRecords = buffer.getInt();
+			if (numAtts < 0 || numRecords < 0 || (long)numAtts * numRecords > Integer.MAX_VALUE)
+				throw new IOException("DatasetCache: wrong size in "+cache+": "+numRecords+" records of "+numAtts+" attributes");
+
+			names = new String[numAtts];
+			for (int i = 0; i < numAtts; i++) {
+				fill(4);
+				int length = buffer.getInt();
+				if (length < 0 || length > CHUNK) throw new IOException("DatasetCache: wrong attribute name in "+cache);
+				byte[] name = new byte[length];
+				fill(length);
+				buffer.get(name);
+				names[i] = new String(name, StandardCharsets.UTF_8);
+			}
+
+			long expected = 8 * (4L * numAtts + (long)numAtts * numRecords);
+			long left = channel.size() - channel.position() + buffer.remaining();
+			if (left != expected) throw new IOException("DatasetCache: "+cache+" is truncated or corrupt, "+left+" bytes of values instead of "+expected);
+
+			double[] means = new double[numAtts];
+			double[] variances = new double[numAtts];
+			double[] mins = new double[numAtts];
+			double[] maxs = new double[numAtts];
+			readDoubles(means, 0, numAtts);
+			readDoubles(variances, 0, numAtts);
+			readDoubles(mins, 0, numAtts);
+			readDoubles(maxs, 0, numAtts);
+			statistics = new Statistics(numRecords, means, variances, mins, maxs);
+		}
+
+		/**
+		 * Checks if the cache matches its source file, when it has one.
+		 * @return TRUE if the cache is not tied to a source file or matches it.
+		 */
+		public boolean matchesSource() {
+			return matchesSource;
+		}
+
+		public String[] getNames() {
+			return names;
+		}
+
+		public int numAttributes() {
+			return names.length;
+		}
+
+		public int numRecords() {
+			return numRecords;
+		}
+
+		public Statistics getStatistics() {
+			return statistics;
+		}
+
+		/**
+		 * Reads the next record.
+		 * @param row the buffer where the values of the record are written.
+		 * @return TRUE if a record was read, and FALSE if all of them have been read.
+		 */
+		public boolean next(double[] row) throws IOException {
+			if (read == numRecords) return false;
+			readDoubles(row, 0, names.length);
+			read++;
+			return true;
+		}
+
+		/**
+		 * Reads values from the channel, through the buffer, straight into an array.
+		 */
+		private void readDoubles(double[] values, int offset, int count) throws IOException {
+			int done = 0;
+			while (done < count) {
+				fill(8);
+				int n = Math.min(buffer.remaining() / 8, count - done);
+				buffer.asDoubleBuffer().get(values, offset + done, n);
+				buffer.position(buffer.position() + n * 8);
+				done += n;
+			}
+		}
+
+		/**
+		 * Reads from the channel until the buffer holds at least the given number of bytes.
+		 */
+		private void fill(int bytes) throws IOException {
+			if (buffer.remaining() >= bytes) return;
+			buffer.compact();
+			while (buffer.position() < bytes) {
+				if (channel.read(buffer) < 0) {
+					buffer.flip();
+					throw new EOFException("DatasetCache: "+cache+" is truncated");
+				}
+			}
+			buffer.flip();
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Sequential writer of a cache file. The records are written under a
+	 * temporary name, which replaces the cache file on finish(). Closing the
+	 * writer before finish() discards the records written.
+	 */
+	public class Writer implements Closeable {
+
+		private File tmp;
+		private RandomAccessFile raf;
+		private FileChannel channel;
+		private ByteBuffer buffer;
+		private int numAtts, numRecords, written;
+		private boolean finished;
+
+		private Writer(String[] names, int numRecords, Statistics statistics) throws IOException {
+			this.numAtts = names.length;
+			this.numRecords = numRecords;
+			this.tmp = new File(cache.getPath() + ".tmp");
+			this.raf = new RandomAccessFile(tmp, "rw");
+
+			try {
+				channel = raf.getChannel();
+				channel.truncate(0);
+				buffer = ByteBuffer.allocate(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+
+				buffer.putInt(MAGIC).putInt(VERSION);
+				if (source != null) buffer.putLong(source.length()).putLong(source.lastModified());
+				else buffer.putLong(-1).putLong(-1);
+				buffer.putInt(numAtts).putInt(numRecords);
+				for (String n : names) {
+					byte[] name = n.getBytes(StandardCharsets.UTF_8);
+					ensure(4 + name.length);
+					buffer.putInt(name.length).put(name);
+				}
+
+				for (int i = 0; i < numAtts; i++) putDouble(statistics.getMean(i));
+				for (int i = 0; i < numAtts; i++) putDouble(statistics.getVariance(i));
+				for (int i = 0; i < numAtts; i++) putDouble(statistics.getMin(i));
+				for (int i = 0; i < numAtts; i++) putDouble(statistics.getMax(i));
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		/**
+		 * Writes the values of a record.
+		 * @param row the values of the record.
+		 */
+		public void write(double[] row) throws IOException {
+			for (int i = 0; i < numAtts; i++) putDouble(row[i]);
+			written++;
+		}
+
+		/**
+		 * Writes a record.
+		 * @param r the record.
+		 */
+		public void write(Record r) throws IOException {
+			for (int i = 0; i < numAtts; i++) putDouble(r.getValue(i));
+			written++;
+		}
+
+		/**
+		 * Writes the pending records and replaces the cache file.
+		 * @throws IOException if the file cannot be written or the number of
+		 * records written is not the one announced.
+		 */
+		public void finish() throws IOException {
+			if (written != numRecords)
+				throw new IOException("DatasetCache: "+written+" records written to "+cache+" instead of "+numRecords);
+			flush();
+			raf.close();
+			finished = true;
+
+			if (cache.exists() && !cache.delete()) throw new IOException("DatasetCache: cannot replace "+cache);
+			if (!tmp.renameTo(cache)) throw new IOException("DatasetCache: cannot create "+cache);
+		}
+
+		private void putDouble(double value) throws IOException {
+			ensure(8);
+			buffer.putDouble(value);
+		}
+
+		private void ensure(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) flush();
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) channel.write(buffer);
+			buffer.clear();
+		}
+
+		/**
+		 * Closes the file. If the writer has not finished, the temporary file
+		 * is deleted and the cache file is left as it was.
+		 */
+		public void close() throws IOException {
+			if (finished) return;
+			try {
+				raf.close();
+			} finally {
+				tmp.delete();
+			}
+		}
+	}
+}
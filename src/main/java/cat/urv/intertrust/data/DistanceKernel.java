@@ -0,0 +1,84 @@
+package cat.urv.intertrust.data;
+
+/**
+ * Standardized SSE-distance over the primitive values of the records. For each
+ * attribute the distance adds the variance of the two values, (x1-x2)^2/4,
+ * divided by the variance of the attribute in the dataset; attributes with no
+ * variance are ignored. The inverse variances are computed once, so evaluating
+ * a distance is a single loop with no allocation.
+ */
+public class DistanceKernel {
+
+	private double[] weights;
+
+	/**
+	 * Constructor.
+	 * @param dataset the dataset whose attribute variances standardize the distance.
+	 */
+	public DistanceKernel(Dataset dataset) {
+		int numAtts = dataset.numAttributes();
+		weights = new double[numAtts];
+
+		for (int d = 0; d < numAtts; d++) {
+			double variance = dataset.getVarianceAttribute(d);
+			weights[d] = (variance != 0) ? 1 / (4 * variance) : 0;
+		}
+	}
+
+	/**
+	 * Returns the number of attributes compared.
+	 * @return the number of attributes.
+	 */
+	public int numAttributes() {
+		return weights.length;
+	}
+
+	/**
+	 * Returns the weight of an attribute, 1/(4*variance), or 0 if the attribute has no variance.
+	 * @param attribute the attribute.
+	 * @return the weight of the attribute.
+	 */
+	public double getWeight(int attribute) {
+		return weights[attribute];
+	}
+
+	/**
+	 * Computes the squared SSE-distance between two records.
+	 * @param x1 the first record.
+	 * @param x2 the second record.
+	 * @return the squared SSE-distance.
+	 */
+	public double squaredDistance(Record x1, Record x2) {
+		if (x1.size < weights.length || x2.size < weights.length)
+			throw new IndexOutOfBoundsException("DistanceKernel: records with "+Math.min(x1.size, x2.size)+" attributes, "+weights.length+" expected");
+		return squaredDistance(x1.values, x1.offset, x2.values, x2.offset);
+	}
+
+	/**
+	 * Computes the squared SSE-distance between two rows of values.
+	 * @param v1 the array holding the first row.
+	 * @param off1 the position of the first row in its array.
+	 * @param v2 the array holding the second row.
+	 * @param off2 the position of the second row in its array.
+	 * @return the squared SSE-distance.
+	 */
+	public double squaredDistance(double[] v1, int off1, double[] v2, int off2) {
+		double[] w = weights;
+		double sse = 0;
+		for (int d = 0; d < w.length; d++) {
+			double diff = v1[off1 + d] - v2[off2 + d];
+			sse += diff * diff * w[d];
+		}
+		return sse;
+	}
+
+	/**
+	 * Computes the SSE-distance between two records.
+	 * @param x1 the first record.
+	 * @param x2 the second record.
+	 * @return the SSE-distance.
+	 */
+	public double distance(Record x1, Record x2) {
+		return Math.sqrt(squaredDistance(x1, x2));
+	}
+}
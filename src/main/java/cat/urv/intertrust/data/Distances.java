@@ -2,22 +2,129 @@ package cat.urv.intertrust.data;
 
 import java.text.DecimalFormat;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 public class Distances<T> {
 	
+	//minimum number of records to search the farthest record in parallel
+	private static final int PARALLEL_THRESHOLD = 1 << 12;
+	private static final int MIN_CHUNK = 1 << 10;
+	//squared distances further apart than this ratio have different roots
+	private static final double FARTHER_RATIO = 1 + 0x1p-50;
+
 	public static int mostDistantRecord(Record rec, Dataset dataset, Map<Integer, Record> unassignedNodes) {
-		double md = 0, dist;
-		int r1 = 0;
-		
-		for (int i : unassignedNodes.keySet()) {
-			dist = Distances.SSE_distance(rec, dataset.getRecord(i), dataset);
-			if (dist > md){
-				md = dist;
-				r1 = i;
+		return mostDistantRecord(rec, dataset, unassignedNodes, null);
+	}
+
+	/**
+	 * Returns the index of the unassigned record at greatest SSE-distance from a
+	 * record. The records are split into chunks searched in parallel, and the
+	 * result is the same as a sequential search over unassignedNodes: the first
+	 * record, in the order of its keys, at the greatest distance, or the first
+	 * record if none is at a positive distance.
+	 * @param rec the record.
+	 * @param dataset the dataset.
+	 * @param unassignedNodes the records to be searched.
+	 * @param pool the pool running the search, or null to search sequentially.
+	 * @return the index of the most distant record.
+	 */
+	public static int mostDistantRecord(Record rec, Dataset dataset, Map<Integer, Record> unassignedNodes, ForkJoinPool pool) {
+		int[] ids = new int[unassignedNodes.size()];
+		int n = 0;
+		for (int i : unassignedNodes.keySet()) ids[n++] = i;
+
+		return mostDistantRecord(rec, dataset, ids, pool);
+	}
+
+	/**
+	 * Returns the index of the active record at greatest SSE-distance from a
+	 * record, searching in parallel as the search over a map of records.
+	 * @param rec the record.
+	 * @param dataset the dataset.
+	 * @param records the records to be searched.
+	 * @param pool the pool running the search, or null to search sequentially.
+	 * @return the index of the most distant record.
+	 */
+	public static int mostDistantRecord(Record rec, Dataset dataset, ActiveRecords records, ForkJoinPool pool) {
+		return mostDistantRecord(rec, dataset, records.toArray(), pool);
+	}
+
+	private static int mostDistantRecord(Record rec, Dataset dataset, int[] ids, ForkJoinPool pool) {
+		int n = ids.length;
+		FarthestTask task = new FarthestTask(rec, dataset, ids, 0, n, MIN_CHUNK);
+		if (pool == null || pool.getParallelism() < 2 || n < PARALLEL_THRESHOLD) {
+			task.scan();
+		} else {
+			task.chunk = Math.max(MIN_CHUNK, n / (4 * pool.getParallelism()));
+			pool.invoke(task);
+		}
+		if (n == 0) return 0;
+		return ids[Math.max(task.best, 0)];
+	}
+
+	/**
+	 * Checks if a squared distance has a greater root than the best one found,
+	 * computing the roots only when both are within rounding of each other.
+	 */
+	private static boolean farther(double sq, double bestSq) {
+		if (!(sq > bestSq)) return false;
+		return sq > bestSq * FARTHER_RATIO || Math.sqrt(sq) > Math.sqrt(bestSq);
+	}
+
+	/**
+	 * Search of the farthest record in a range of ids. Ties are resolved to the
+	 * lowest position, so the result does not depend on how the range is split.
+	 */
+	private static class FarthestTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private Record rec;
+		private Dataset dataset;
+		private DistanceKernel kernel;
+		private int[] ids;
+		private int from, to, chunk;
+		private int best = -1;
+		private double bestSq = 0;
+
+		FarthestTask(Record rec, Dataset dataset, int[] ids, int from, int to, int chunk) {
+			this.rec = rec;
+			this.dataset = dataset;
+			this.kernel = dataset.getDistanceKernel();
+			this.ids = ids;
+			this.from = from;
+			this.to = to;
+			this.chunk = chunk;
+		}
+
+		protected void compute() {
+			if (to - from <= chunk) {
+				scan();
+				return;
+			}
+
+			int mid = (from + to) >>> 1;
+			FarthestTask left = new FarthestTask(rec, dataset, ids, from, mid, chunk);
+			FarthestTask right = new FarthestTask(rec, dataset, ids, mid, to, chunk);
+			invokeAll(left, right);
+
+			best = left.best;
+			bestSq = left.bestSq;
+			if (farther(right.bestSq, bestSq)) {
+				best = right.best;
+				bestSq = right.bestSq;
+			}
+		}
+
+		void scan() {
+			for (int i = from; i < to; i++) {
+				double sq = kernel.squaredDistance(rec, dataset.getRecord(ids[i]));
+				if (farther(sq, bestSq)) {
+					bestSq = sq;
+					best = i;
+				}
 			}
 		}
-		
-		return r1;
 	}
 	
 	public static int leastDistantRecord(Record recOriginal, Record recSynth, Dataset dataset) {
@@ -48,25 +155,7 @@ public class Distances<T> {
 	 * @return SSE-distance between the two records of a dataset.
 	 */
 	public static double SSE_distance(Record x1, Record x2, Dataset dataset) {
-		double sse = 0;
-		double num = 0, den = 0;		
-		
-		for (int d = 0; d < dataset.numAttributes(); d++) {					
-			List<Double> records = new ArrayList<Double>();
-			records.add(Double.valueOf(x1.getAttribute(d).toString()));
-			records.add(Double.valueOf(x2.getAttribute(d).toString()));
-		
-			num = Operations.otherNumVariance(records);
-			
-			
-			den = dataset.getVarianceAttribute(d);
-			if (num!=0 && den!=0) sse += num/den;
-			
-			
-			num = 0;
-			den = 0;
-		}
-		return Math.sqrt(sse);
+		return dataset.getDistanceKernel().distance(x1, x2);
 	}
 
 	public static double SSE_distance_Hybrid(Record x1, Record x2, Dataset dataset) {
@@ -203,8 +292,8 @@ public class Distances<T> {
 		for (int i = 0; i < real.getAttributeList().size(); i++) {
 				for (int j = 0; j < real.getAttributeList().size(); j++) {
 				if (codeAttributes.contains(i) && codeAttributes.contains(j)) {
-					covarianceReal = real.computeCovarianceContinuous(real.getAttributeValues(i), real.getAttributeValues(j));
-					covarianceSynth = synthetic.computeCovarianceContinuous(synthetic.getAttributeValues(i), synthetic.getAttributeValues(j));
+					covarianceReal = real.getCovarianceAttribute(i, j);
+					covarianceSynth = synthetic.getCovarianceAttribute(i, j);
 					
 					if (covarianceReal == 0) {
 						value = Math.abs(covarianceSynth-covarianceReal)/(Math.abs(covarianceReal+1));	
@@ -232,7 +321,7 @@ public class Distances<T> {
 				r1 = originalDataset.getRecord(i);
 				r2 = perturbedDataset.getRecord(i);
 				
-				distanceAtt += Math.pow(Double.parseDouble(r2.getAttribute(d).toString()) - Double.parseDouble(r1.getAttribute(d).toString()), 2);
+				distanceAtt += Math.pow(r2.getValue(d) - r1.getValue(d), 2);
 			}
 			
 			System.out.println(a.getName() + " SSE Value: \t" + distanceAtt);
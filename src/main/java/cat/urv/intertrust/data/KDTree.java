@@ -0,0 +1,220 @@
+package cat.urv.intertrust.data;
+import java.util.*;
+
+/**
+ * KD-tree over the records of a dataset for nearest-record queries under the
+ * SSE-distance of the dataset. Records can be removed from the tree, so it can
+ * follow the unassigned records of a microaggregation run.
+ *
+ * Distances are evaluated with the {@link DistanceKernel} of the dataset, and
+ * the bounding boxes of the nodes are only used to discard subtrees, so the
+ * results are exactly those of a linear scan. Ties are broken by the lowest
+ * record index.
+ */
+public class KDTree {
+
+	private static final int LEAF_SIZE = 16;
+
+	private Dataset dataset;
+	private DistanceKernel kernel;
+	private int numAtts;
+
+	private int[] perm;			//record indexes, grouped by leaf
+	private int[] leafOf;			//leaf holding each record
+	private boolean[] removed;
+
+	//nodes of the tree
+	private int numNodes;
+	private int[] start, end, left, right, parent, alive;
+	private double[] boxMin, boxMax;
+
+	//nearest records of the current query
+	private TopK heap;
+
+	/**
+	 * Constructor. Builds the tree with all the records of the dataset.
+	 * @param dataset the dataset.
+	 */
+	public KDTree(Dataset dataset) {
+		this.dataset = dataset;
+		this.kernel = dataset.getDistanceKernel();
+		this.numAtts = kernel.numAttributes();
+
+		int n = dataset.numRecords();
+		perm = new int[n];
+		for (int i = 0; i < n; i++) perm[i] = i;
+		leafOf = new int[n];
+		removed = new boolean[n];
+
+		//leaves hold at least LEAF_SIZE/2 records
+		int maxNodes = 2 * (n / (LEAF_SIZE / 2) + 1);
+		start = new int[maxNodes];
+		end = new int[maxNodes];
+		left = new int[maxNodes];
+		right = new int[maxNodes];
+		parent = new int[maxNodes];
+		alive = new int[maxNodes];
+		boxMin = new double[maxNodes * numAtts];
+		boxMax = new double[maxNodes * numAtts];
+
+		build(0, n, -1);
+	}
+
+	private int build(int from, int to, int up) {
+		int node = numNodes++;
+		start[node] = from;
+		end[node] = to;
+		parent[node] = up;
+		left[node] = right[node] = -1;
+		alive[node] = to - from;
+
+		int base = node * numAtts;
+		Arrays.fill(boxMin, base, base + numAtts, Double.POSITIVE_INFINITY);
+		Arrays.fill(boxMax, base, base + numAtts, Double.NEGATIVE_INFINITY);
+		for (int i = from; i < to; i++) {
+			Record r = dataset.getRecord(perm[i]);
+			for (int d = 0; d < numAtts; d++) {
+				double v = r.getValue(d);
+				if (v < boxMin[base + d]) boxMin[base + d] = v;
+				if (v > boxMax[base + d]) boxMax[base + d] = v;
+			}
+		}
+
+		if (to - from <= LEAF_SIZE) {
+			for (int i = from; i < to; i++) leafOf[perm[i]] = node;
+			return node;
+		}
+
+		//split by the median of the attribute with the largest standardized spread
+		int dim = 0;
+		double spread = -1;
+		for (int d = 0; d < numAtts; d++) {
+			double range = boxMax[base + d] - boxMin[base + d];
+			double s = range * range * kernel.getWeight(d);
+			if (s > spread) {
+				spread = s;
+				dim = d;
+			}
+		}
+		if (spread <= 0) {
+			for (int i = from; i < to; i++) leafOf[perm[i]] = node;
+			return node;
+		}
+
+		int mid = (from + to) >>> 1;
+		select(from, to - 1, mid, dim);
+		left[node] = build(from, mid, node);
+		right[node] = build(mid, to, node);
+		return node;
+	}
+
+	private double value(int pos, int dim) {
+		return dataset.getRecord(perm[pos]).getValue(dim);
+	}
+
+	/**
+	 * Reorders perm[lo..hi] so the element at position k is the one that would
+	 * be there if the range was sorted by the attribute dim.
+	 */
+	private void select(int lo, int hi, int k, int dim) {
+		while (hi > lo) {
+			double pivot = value((lo + hi) >>> 1, dim);
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (value(i, dim) < pivot) i++;
+				while (value(j, dim) > pivot) j--;
+				if (i <= j) {
+					int t = perm[i]; perm[i] = perm[j]; perm[j] = t;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j) hi = j;
+			else if (k >= i) lo = i;
+			else return;
+		}
+	}
+
+	/**
+	 * Removes a record from the tree.
+	 * @param record the index of the record in the dataset.
+	 */
+	public void remove(int record) {
+		if (removed[record]) return;
+		removed[record] = true;
+		for (int node = leafOf[record]; node >= 0; node = parent[node]) alive[node]--;
+	}
+
+	/**
+	 * Returns the number of records that have not been removed.
+	 * @return the number of records in the tree.
+	 */
+	public int size() {
+		return alive[0];
+	}
+
+	/**
+	 * Checks if a record is still in the tree.
+	 * @param record the index of the record in the dataset.
+	 * @return TRUE if the record has not been removed.
+	 */
+	public boolean contains(int record) {
+		return !removed[record];
+	}
+
+	/**
+	 * Returns the records in the tree nearest to a record, ordered by increasing
+	 * distance.
+	 * @param rec the record.
+	 * @param num the number of records to be found.
+	 * @param exclude index of a record to be skipped, or -1.
+	 * @return the indexes of the nearest records.
+	 */
+	public List<Integer> nearest(Record rec, int num, int exclude) {
+		heap = new TopK(num, false);
+		if (num > 0 && numNodes > 0) search(0, rec, exclude);
+
+		int[] ids = heap.sortedIds();
+		List<Integer> result = new ArrayList<Integer>(ids.length);
+		for (int id : ids) result.add(id);
+		return result;
+	}
+
+	private void search(int node, Record rec, int exclude) {
+		if (alive[node] == 0) return;
+		if (heap.isFull() && bound(node, rec) > heap.worstKey()) return;
+
+		if (left[node] < 0) {
+			for (int i = start[node]; i < end[node]; i++) {
+				int id = perm[i];
+				if (removed[id] || id == exclude) continue;
+				heap.offer(id, kernel.squaredDistance(rec, dataset.getRecord(id)));
+			}
+			return;
+		}
+
+		//visit first the child with the nearest box
+		int first = left[node], second = right[node];
+		if (bound(second, rec) < bound(first, rec)) {
+			first = right[node];
+			second = left[node];
+		}
+		search(first, rec, exclude);
+		search(second, rec, exclude);
+	}
+
+	/**
+	 * Lower bound of the squared distance between a record and any record in a node.
+	 */
+	private double bound(int node, Record rec) {
+		int base = node * numAtts;
+		double sse = 0;
+		for (int d = 0; d < numAtts; d++) {
+			double v = rec.getValue(d), diff = 0;
+			if (v < boxMin[base + d]) diff = v - boxMin[base + d];
+			else if (v > boxMax[base + d]) diff = v - boxMax[base + d];
+			sse += diff * diff * kernel.getWeight(d);
+		}
+		return sse;
+	}
+}
@@ -0,0 +1,317 @@
+package cat.urv.intertrust.data;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Parallel loader for large tab-separated files. The file is memory-mapped,
+ * split at line boundaries into ranges, and the ranges are parsed concurrently
+ * straight into a preallocated record block. Each line holds one record; lines
+ * with a wrong number of values or with values that are not numbers are skipped.
+ * A value is a number under the same rule as in Dataset.loadValues, so both
+ * loaders keep the same records of a file.
+ */
+public class MappedLoader {
+
+	//a single mapping cannot be larger than Integer.MAX_VALUE bytes
+	private static final long MAX_RANGE = 1L << 30;
+	private static final double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+	private String datafile;
+	private int threads;
+
+	/**
+	 * Constructor.
+	 * @param datafile the file containing the data values.
+	 * @param threads the number of threads used to parse the file.
+	 */
+	public MappedLoader(String datafile, int threads) {
+		this.datafile = datafile;
+		this.threads = Math.max(threads, 1);
+	}
+
+	/**
+	 * Loads the attributes of the file into the dataset and returns its values.
+	 * Missing values ("?") are returned as NaN.
+	 * @param dataset the dataset where the attributes are loaded.
+	 * @return the block with the values of the file.
+	 */
+	public RecordBlock load(Dataset dataset) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(datafile, "r");
+		ForkJoinPool pool = new ForkJoinPool(threads);
+
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+
+			long dataStart = loadHeader(channel, dataset);
+			final int numAtts = dataset.getAttributeList().size();
+
+			//split the file into ranges ending at a line boundary
+			long numRanges = Math.max(threads, (size - dataStart) / MAX_RANGE + 1);
+			List<Long> bounds = new ArrayList<Long>();
+			bounds.add(dataStart);
+			for (long i = 1; i < numRanges; i++) {
+				long pos = nextLine(channel, dataStart + i * ((size - dataStart) / numRanges));
+				if (pos > bounds.get(bounds.size()-1) && pos < size) bounds.add(pos);
+			}
+			bounds.add(size);
+
+			final List<MappedByteBuffer> buffers = new ArrayList<MappedByteBuffer>();
+			for (int i = 0; i+1 < bounds.size(); i++) {
+				buffers.add(channel.map(FileChannel.MapMode.READ_ONLY, bounds.get(i), bounds.get(i+1) - bounds.get(i)));
+			}
+
+			//count the lines of each range to preallocate the values
+			List<Callable<Integer>> counters = new ArrayList<Callable<Integer>>();
+			for (final MappedByteBuffer buffer : buffers) {
+				counters.add(new Callable<Integer>() {
+					public Integer call() {
+						return countLines(buffer);
+					}
+				});
+			}
+			List<Integer> lines = getAll(pool.invokeAll(counters));
+
+			long total = 0;
+			final int[] firstRecord = new int[buffers.size()];
+			for (int i = 0; i < buffers.size(); i++) {
+				firstRecord[i] = (int)total;
+				total += lines.get(i);
+			}
+			if (total * numAtts > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("MappedLoader: "+datafile+" is too large to be loaded in a single block");
+			final double[] values = new double[(int)(total * numAtts)];
+
+			//parse the ranges
+			List<Callable<Integer>> parsers = new ArrayList<Callable<Integer>>();
+			for (int i = 0; i < buffers.size(); i++) {
+				final int range = i;
+				parsers.add(new Callable<Integer>() {
+					public Integer call() {
+						return parseRange(buffers.get(range), values, firstRecord[range] * numAtts, numAtts);
+					}
+				});
+			}
+			List<Integer> parsed = getAll(pool.invokeAll(parsers));
+
+			//close the gaps left by the skipped lines
+			int numRecords = parsed.get(0);
+			for (int i = 1; i < buffers.size(); i++) {
+				System.arraycopy(values, firstRecord[i] * numAtts, values, numRecords * numAtts, parsed.get(i) * numAtts);
+				numRecords += parsed.get(i);
+			}
+
+			return new RecordBlock(values, numAtts, numRecords);
+		} finally {
+			pool.shutdown();
+			raf.close();
+		}
+	}
+
+	private static <T> List<T> getAll(List<Future<T>> futures) throws Exception {
+		List<T> results = new ArrayList<T>();
+		try {
+			for (Future<T> f : futures) results.add(f.get());
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) throw (Exception)e.getCause();
+			throw e;
+		}
+		return results;
+	}
+
+	/**
+	 * Reads the first line of the file with the names of the attributes.
+	 * @return the position where the values begin.
+	 */
+	private static long loadHeader(FileChannel channel, Dataset dataset) throws Exception {
+		long end = nextLine(channel, 0);
+		ByteBuffer header = ByteBuffer.allocate((int)end);
+		channel.read(header, 0);
+
+		String line = new String(header.array(), StandardCharsets.ISO_8859_1);
+		line = line.replace("\r", "").replace("\n", "");
+		dataset.loadAttributes(line.split("\t"));
+
+		return end;
+	}
+
+	/**
+	 * Returns the position after the first new line found from a position.
+	 */
+	private static long nextLine(FileChannel channel, long pos) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8192);
+		long size = channel.size();
+
+		while (pos < size) {
+			buffer.clear();
+			int read = channel.read(buffer, pos);
+			if (read <= 0) break;
+			for (int i = 0; i < read; i++) {
+				if (buffer.get(i) == '\n') return pos + i + 1;
+			}
+			pos += read;
+		}
+		return size;
+	}
+
+	private static int countLines(ByteBuffer buffer) {
+		int lines = 0, limit = buffer.limit();
+		for (int i = 0; i < limit; i++) {
+			if (buffer.get(i) == '\n') lines++;
+		}
+		if (limit > 0 && buffer.get(limit-1) != '\n') lines++;
+		return lines;
+	}
+
+	/**
+	 * Parses the lines of a range into the values array.
+	 * @return the number of records parsed.
+	 */
+	private static int parseRange(ByteBuffer buffer, double[] values, int offset, int numAtts) {
+		int limit = buffer.limit();
+		int start = 0, records = 0;
+
+		while (start < limit) {
+			int end = start;
+			while (end < limit && buffer.get(end) != '\n') end++;
+
+			if (parseLine(buffer, start, end, values, offset + records * numAtts, numAtts)) records++;
+			start = end + 1;
+		}
+		return records;
+	}
+
+	private static boolean parseLine(ByteBuffer buffer, int start, int end, double[] values, int offset, int numAtts) {
+		//trailing tabs are empty values at the end of the record
+		while (end > start && isBlank(buffer.get(end-1))) end--;
+		if (end == start) return false;
+
+		int att = 0, from = start;
+		while (from <= end) {
+			int to = from;
+			while (to < end && buffer.get(to) != '\t') to++;
+			if (att == numAtts) return false;
+
+			if (isMissing(buffer, from, to)) {
+				values[offset + att] = Double.NaN;
+			} else {
+				try {
+					values[offset + att] = parseValue(buffer, from, to);
+				} catch (NumberFormatException e) {
+					return false;
+				}
+			}
+			att++;
+			from = to + 1;
+		}
+		return att == numAtts;
+	}
+
+	private static boolean isBlank(byte b) {
+		return b == '\t' || b == '\r' || b == ' ';
+	}
+
+	private static boolean isMissing(ByteBuffer buffer, int from, int to) {
+		while (from < to && buffer.get(from) == ' ') from++;
+		while (to > from && buffer.get(to-1) == ' ') to--;
+		return (to - from == 1) && buffer.get(from) == '?';
+	}
+
+	/**
+	 * Parses a decimal number. Both '.' and ',' are accepted as decimal separator.
+	 * Plain decimal numbers are parsed in place; any other text is parsed as
+	 * Dataset.loadValues does, lower-cased and with Double.parseDouble.
+	 * @return the value.
+	 * @throws NumberFormatException if the text is not a number.
+	 */
+	static double parseValue(ByteBuffer buffer, int from, int to) {
+		while (from < to && buffer.get(from) == ' ') from++;
+		while (to > from && buffer.get(to-1) == ' ') to--;
+		if (from == to) throw new NumberFormatException("empty value");
+
+		int pos = from;
+		boolean negative = false;
+		byte b = buffer.get(pos);
+		if (b == '-' || b == '+') {
+			negative = (b == '-');
+			pos++;
+		}
+
+		long mantissa = 0;
+		int digits = 0, exponent = 0;
+		boolean anyDigit = false, point = false;
+		for (; pos < to; pos++) {
+			b = buffer.get(pos);
+			if (b >= '0' && b <= '9') {
+				anyDigit = true;
+				if (mantissa == 0 && b == '0') {
+					if (point) exponent--;
+					continue;
+				}
+				if (digits < 18) {
+					mantissa = mantissa * 10 + (b - '0');
+					digits++;
+					if (point) exponent--;
+				} else {
+					if (!point) exponent++;
+					digits++;
+				}
+			} else if ((b == '.' || b == ',') && !point) {
+				point = true;
+			} else break;
+		}
+		if (!anyDigit) return parseText(buffer, from, to);
+
+		if (pos < to && (buffer.get(pos) == 'e' || buffer.get(pos) == 'E')) {
+			pos++;
+			boolean negExp = false;
+			if (pos < to && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+				negExp = (buffer.get(pos) == '-');
+				pos++;
+			}
+			int exp = 0, expDigits = 0;
+			for (; pos < to && buffer.get(pos) >= '0' && buffer.get(pos) <= '9'; pos++, expDigits++) {
+				if (exp < 100000) exp = exp * 10 + (buffer.get(pos) - '0');
+			}
+			if (expDigits == 0) return parseText(buffer, from, to);
+			exponent += negExp ? -exp : exp;
+		}
+		if (pos != to) return parseText(buffer, from, to);
+
+		double value;
+		if (mantissa == 0) {
+			value = 0;
+		} else if (digits <= 15 && exponent >= -22 && exponent <= 22) {
+			//both operands are exact, so the result is correctly rounded
+			value = exponent < 0 ? mantissa / POW10[-exponent] : mantissa * POW10[exponent];
+		} else {
+			return parseText(buffer, from, to);
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Parses a value with Double.parseDouble, after the same corrections as
+	 * Dataset.loadValues: lower case and ',' as decimal separator.
+	 * @throws NumberFormatException if the text is not a number.
+	 */
+	private static double parseText(ByteBuffer buffer, int from, int to) {
+		byte[] text = new byte[to - from];
+		for (int i = 0; i < text.length; i++) {
+			text[i] = buffer.get(from + i);
+			if (text[i] == ',') text[i] = '.';
+		}
+		return Double.parseDouble(new String(text, StandardCharsets.ISO_8859_1).toLowerCase());
+	}
+}
@@ -209,16 +209,33 @@ public class Partition {
 		return recordsInGroup;
 	}
     
+    /**
+     * Returns the values of a specific attribute of the records that belong to the group.
+     * @param group the group number
+     * @param attr the attribute.
+     * @return the values of the attribute in the group.
+     */
+    public double[] getGroupAttributeDoubleValues (int group, int attr) {
+    	List<Integer> groupElements = this.getGroup(group);
+    	double[] values = new double[groupElements.size()];
+    	
+    	int j = 0;
+    	for (int i: groupElements) {
+    		values[j++] = dataset.getRecord(i).getValue(attr);
+    	}
+    	return values;
+    }
+    
     public boolean isIdenticGroupAttribute (List<Integer> groupElements, int attr) {
     	   	
-    	String att = dataset.getRecord(groupElements.get(0)).getAttribute(attr).toString();
+    	double att = dataset.getRecord(groupElements.get(0)).getValue(attr);
     	//int index = dataset.getAttribute(attr).nominalToNumeric(att);
     	
     	for (int i: groupElements) {
     		/*if (index != dataset.getAttribute(attr).nominalToNumeric(dataset.getRecord(i).getAttribute(attr).toString())) {
     			return false;
     		}*/
-    		if (!att.equals(dataset.getRecord(i).getAttribute(attr).toString())) return false; 
+    		if (Double.compare(att, dataset.getRecord(i).getValue(attr)) != 0) return false; 
     	}
     	
     	return true;
@@ -254,7 +271,7 @@ public class Partition {
 					
 					bw.write(rec + ": ");
 					for (int l = 0; l < dataset.getAttributeList().size(); l++){
-						bw.write(dataset.getRecord(rec).getAttribute(l).toString());
+						bw.write(Double.toString(dataset.getRecord(rec).getValue(l)));
 						bw.write(", ");
 					}
 					bw.write("GR_" + dataset.getRecord(rec).getGroup());
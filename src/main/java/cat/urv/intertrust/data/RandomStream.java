@@ -0,0 +1,129 @@
+package cat.urv.intertrust.data;
+import java.util.Random;
+
+/**
+ * Seeded and splittable source of random numbers for the perturbation methods.
+ *
+ * Each stream is a SplitMix64 generator, which is not shared between threads
+ * and so has no contention. A stream can be split into independent child
+ * streams identified by a key (a group, an attribute, a shard...). The child
+ * streams only depend on the seed of their parent and on their key, not on how
+ * much the parent has been used nor on the thread that uses them, so a method
+ * that draws a stream per group gives the same results whatever the number of
+ * threads processing the groups.
+ *
+ * The stream handed by next(purpose) only depends on the global seed and on
+ * the purpose, not on the streams handed before, so a method gives the same
+ * results for the same seed whatever ran before it (for instance, whether the
+ * missing values of the dataset were imputed or read from a cache). A method
+ * called twice with the same purpose gets the same stream, so the calls that
+ * need different numbers must split it. Without a global seed, each run uses
+ * a different one.
+ */
+public class RandomStream extends Random {
+
+	private static final long serialVersionUID = 1L;
+	private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+	private static volatile long globalSeed = mix64(System.nanoTime() ^ System.currentTimeMillis());
+
+	private long seed;
+	private long state;
+	private double nextGaussian;
+	private boolean haveNextGaussian;
+
+	/**
+	 * Constructor.
+	 * @param seed the seed of the stream.
+	 */
+	public RandomStream(long seed) {
+		super(0);
+		this.seed = seed;
+		this.state = seed;
+	}
+
+	/**
+	 * Sets the global seed.
+	 * @param seed the global seed.
+	 */
+	public static void setGlobalSeed(long seed) {
+		globalSeed = seed;
+	}
+
+	public static long getGlobalSeed() {
+		return globalSeed;
+	}
+
+	/**
+	 * Returns the stream of a method, derived from the global seed and the purpose.
+	 * @param purpose the name of the method using the stream.
+	 * @return the stream.
+	 */
+	public static RandomStream next(String purpose) {
+		return new RandomStream(globalSeed).split(purpose.hashCode());
+	}
+
+	/**
+	 * Returns the child stream with a given key. It is the same stream whenever
+	 * it is requested, whatever the numbers drawn from this stream.
+	 * @param key the key of the child stream.
+	 * @return the child stream.
+	 */
+	public RandomStream split(long key) {
+		return new RandomStream(mix64(mix64(seed + GOLDEN_GAMMA) ^ mix64(key * GOLDEN_GAMMA + 1)));
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public void setSeed(long seed) {
+		//called by the constructor of Random before the fields are assigned
+		this.seed = seed;
+		this.state = seed;
+		this.haveNextGaussian = false;
+	}
+
+	public long nextLong() {
+		state += GOLDEN_GAMMA;
+		return mix64(state);
+	}
+
+	protected int next(int bits) {
+		return (int)(nextLong() >>> (64 - bits));
+	}
+
+	public double nextDouble() {
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	/**
+	 * Returns a standard normal value, by the polar method as Random but
+	 * without synchronization, as a stream is not shared between threads.
+	 * @return the normal value.
+	 */
+	public double nextGaussian() {
+		if (haveNextGaussian) {
+			haveNextGaussian = false;
+			return nextGaussian;
+		}
+
+		double v1, v2, s;
+		do {
+			v1 = 2 * nextDouble() - 1;
+			v2 = 2 * nextDouble() - 1;
+			s = v1 * v1 + v2 * v2;
+		} while (s >= 1 || s == 0);
+
+		double multiplier = Math.sqrt(-2 * Math.log(s) / s);
+		nextGaussian = v2 * multiplier;
+		haveNextGaussian = true;
+		return v1 * multiplier;
+	}
+
+	private static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
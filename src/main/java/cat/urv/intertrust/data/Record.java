@@ -2,36 +2,59 @@ package cat.urv.intertrust.data;
 import java.util.*;
 
 /**
- * Represents a record of the dataset.
+ * Represents a record of the dataset. The values are stored as primitives,
+ * either in an array owned by the record or as a view over a row of a
+ * {@link RecordBlock}.
  */
 public class Record {
-	
-	List<Double> data;
+
+	double[] values;
+	int offset, size;
 	int posDataset, idGroup;
-	
+
 	/**
      * Default constructor.
      * @param size the number of attributes.
      */
 	public Record(int size) {
-		data = new ArrayList<Double>();
-		for (int i=0; i<size; i++) data.add(0.0);
+		this.values = new double[size];
+		this.offset = 0;
+		this.size = size;
 	}
-	
-	
+
+
 	/**
      * Constructor.
      * @param data the values of the record.
      */
 	public Record(List<Double> data) {
-		this.data = data;
+		this(data.size());
+		for (int i=0; i<size; i++) values[i] = data.get(i);
 	}
-	
+
+	/**
+	 * Constructor.
+	 * @param values the values of the record.
+	 */
+	public Record(double[] values) {
+		this(values, 0, values.length);
+	}
+
+	/**
+	 * Constructor of a record backed by a row of a shared array.
+	 * @param values the shared array.
+	 * @param offset the position of the first attribute of the record in the array.
+	 * @param size the number of attributes.
+	 */
+	Record(double[] values, int offset, int size) {
+		this.values = values;
+		this.offset = offset;
+		this.size = size;
+	}
+
 	public Record(Record rec) {
-		data = new ArrayList<Double>();
-		for (int i = 0; i<rec.getData().size(); i++) {
-			data.add(rec.getData().get(i));
-		}
+		this(rec.size());
+		System.arraycopy(rec.values, rec.offset, values, 0, size);
 		this.posDataset = rec.getPosDataset();
 		this.idGroup = rec.getGroup();
 	}
@@ -40,14 +63,14 @@ public class Record {
      * @param attribute the the attribute position in the record.
      * @param value the value of the attribute.
      */
-	public void setAttribute(int attribute, double value) {	
-		if (data==null)			
+	public void setAttribute(int attribute, double value) {
+		if (values==null)
 			new Error("Record not initialized");
-		
-		data.set(attribute, value);
+
+		values[offset + checkIndex(attribute)] = value;
 	}
-	
-	
+
+
     /**
      * Returns the value associated with the name of the attribute.
      * @param attribute the attribute's number of the record.
@@ -55,109 +78,133 @@ public class Record {
      */
     public Double getAttribute(int attribute){
     	try {
-    		if (data==null)			
-				new Error("Attribute not found");			
+    		if (values==null)
+				new Error("Attribute not found");
     		else {
-    			Double rec = data.get(attribute);
-    			if (rec instanceof Double) {
-    				return Double.valueOf(rec.toString());
-    			} else {
-    				return rec;
-    			}
+    			return Double.valueOf(getValue(attribute));
     		}
-    			
+
     	} catch (IndexOutOfBoundsException e) {
  			e.printStackTrace();
- 		} 
-    	
+ 		}
+
     	return null;
     }
-    
-    
+
+    /**
+     * Returns the primitive value of an attribute of the record.
+     * @param attribute the attribute's number of the record.
+     * @return the attribute's value.
+     */
+    public double getValue(int attribute) {
+    	return values[offset + checkIndex(attribute)];
+    }
+
     /**
-     * Returns all the values of the record.
+     * Copies the values of the record into an array.
+     * @param dest the destination array.
+     * @param destPos the starting position in the destination array.
+     */
+    public void copyValues(double[] dest, int destPos) {
+    	System.arraycopy(values, offset, dest, destPos, size);
+    }
+
+    private int checkIndex(int attribute) {
+    	if (attribute < 0 || attribute >= size)
+    		throw new IndexOutOfBoundsException("Attribute: "+attribute+", Size: "+size);
+    	return attribute;
+    }
+
+
+    /**
+     * Returns all the values of the record. The list is a view over the
+     * record values, so changes on the list are written through.
      * @return the list of the values of the record.
      */
     public List<Double> getData(){
-        return data;
+        return new AbstractList<Double>() {
+        	public Double get(int index) {
+        		return getValue(index);
+        	}
+
+        	public Double set(int index, Double value) {
+        		Double old = getValue(index);
+        		setAttribute(index, value);
+        		return old;
+        	}
+
+        	public int size() {
+        		return size;
+        	}
+		};
     }
-    
-    
+
+
     /**
      * Returns a string representation of the record.
      * @return a string representation of the record.
      */
     public String toString() {
-    	String s = "";
-    	int i=0;
-    	for (Double value: data) {
-    		s+=value.toString();    		
-    		i++;
-    		if (i<data.size()) s+=", ";
-    	}
-    	return s;
+    	return appendTo(new StringBuilder(size * 12), ", ").toString();
     }
     
+    /**
+     * Appends the values of the record to a buffer.
+     * @param sb the buffer.
+     * @param separator the separator between values.
+     * @return the buffer.
+     */
+    public StringBuilder appendTo(StringBuilder sb, String separator) {
+    	for (int i=0; i<size; i++) {
+    		if (i>0) sb.append(separator);
+    		sb.append(values[offset+i]);
+    	}
+    	return sb;
+    }
+
     /**
      * Returns a string representation, ready for IVEware's software.
      * @return a string representation of the record.
      */
     public String toIVEwareString(int missing) {
-    	String s = "";
-    	int i = 0;
-    	
     	//s += this.posDataset + "\t";
-    	
-    	for (Double value: data) {
-    		s+=value.toString();
-    		
-    		i++;
-    		if (i<data.size()) {
-    			s+="\t";
-    		}
-    	}
-    	
-    	return s;
+
+    	return appendTo(new StringBuilder(size * 12), "\t").toString();
     }
-    
-    
+
+
 	 /**
      * Returns the number of attributes stored in the record.
      * @return the number of records of the record.
      */
     public int size() {
-		return data.size();
+		return size;
 	}
 
 
 	public int getPosDataset() {
 		return this.posDataset;
 	}
-    
+
     public void setPosDataset (int position) {
-    	this.posDataset = position; 
+    	this.posDataset = position;
     }
 
 
 	public void setGroup(int group) {
 		this.idGroup = group;
 	}
-	
+
 	public int getGroup () {
 		return this.idGroup;
 	}
 
 
 	public String toTabString() {
-		String s = "";
-    	int i=0;
-    	
-    	for (Double value: data) {
-    		s+=value.toString();    		
-    		i++;
-    		if (i<data.size()) s+="\t";
-    	}
-    	s = s.replace('.', ',');
-    	return s;
+		StringBuilder sb = appendTo(new StringBuilder(size * 12), "\t");
+		for (int i=0; i<sb.length(); i++) {
+			if (sb.charAt(i) == '.') sb.setCharAt(i, ',');
+		}
+    	return sb.toString();
 	}
 }
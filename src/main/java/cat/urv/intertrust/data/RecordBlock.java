@@ -0,0 +1,144 @@
+package cat.urv.intertrust.data;
+import java.util.*;
+
+/**
+ * Row-major primitive storage for the values of a dataset. All the values are
+ * kept in a single array, and the records of the dataset are views over its rows.
+ */
+public class RecordBlock {
+
+	private double[] values;
+	private int numAttributes;
+	private int numRecords;
+	private boolean bound;
+
+	/**
+	 * Constructor.
+	 * @param numAttributes the number of attributes of each record.
+	 * @param capacity the initial number of records the block can hold.
+	 */
+	public RecordBlock(int numAttributes, int capacity) {
+		this.numAttributes = numAttributes;
+		this.values = new double[Math.max(capacity, 1) * numAttributes];
+		this.numRecords = 0;
+	}
+
+	/**
+	 * Constructor of a block over an existing array of values.
+	 * @param values the values of the records, one row after the other.
+	 * @param numAttributes the number of attributes of each record.
+	 */
+	public RecordBlock(double[] values, int numAttributes) {
+		this(values, numAttributes, values.length / numAttributes);
+		if (values.length % numAttributes != 0)
+			throw new IllegalArgumentException("RecordBlock: "+values.length+" values do not fit records of "+numAttributes+" attributes");
+	}
+	
+	/**
+	 * Constructor of a block over the first records of an existing array of values.
+	 * @param values the values of the records, one row after the other.
+	 * @param numAttributes the number of attributes of each record.
+	 * @param numRecords the number of records stored in the array.
+	 */
+	public RecordBlock(double[] values, int numAttributes, int numRecords) {
+		if (numRecords * numAttributes > values.length)
+			throw new IllegalArgumentException("RecordBlock: "+numRecords+" records do not fit in "+values.length+" values");
+		this.values = values;
+		this.numAttributes = numAttributes;
+		this.numRecords = numRecords;
+	}
+
+	/**
+	 * Appends a new record to the block.
+	 * @param row the values of the record.
+	 * @return the index of the new record.
+	 */
+	public int add(double[] row) {
+		if (bound)
+			throw new IllegalStateException("RecordBlock: records cannot be added once the block is bound to a dataset");
+		ensureCapacity(numRecords + 1);
+		System.arraycopy(row, 0, values, numRecords * numAttributes, numAttributes);
+		return numRecords++;
+	}
+
+	/**
+	 * Ensures the block can hold a number of records without growing.
+	 * @param records the number of records.
+	 */
+	public void ensureCapacity(int records) {
+		int needed = records * numAttributes;
+		if (needed > values.length) {
+			int capacity = Math.max(needed, values.length + (values.length >> 1));
+			values = Arrays.copyOf(values, capacity);
+		}
+	}
+
+	/**
+	 * Returns a value of the block.
+	 * @param record the index of the record.
+	 * @param attribute the index of the attribute.
+	 * @return the value.
+	 */
+	public double get(int record, int attribute) {
+		return values[record * numAttributes + attribute];
+	}
+
+	/**
+	 * Sets a value of the block.
+	 * @param record the index of the record.
+	 * @param attribute the index of the attribute.
+	 * @param value the new value.
+	 */
+	public void set(int record, int attribute, double value) {
+		values[record * numAttributes + attribute] = value;
+	}
+
+	/**
+	 * Returns a copy of the values of an attribute.
+	 * @param attribute the index of the attribute.
+	 * @return the values of the attribute.
+	 */
+	public double[] getColumn(int attribute) {
+		double[] column = new double[numRecords];
+		for (int i = 0, pos = attribute; i < numRecords; i++, pos += numAttributes) {
+			column[i] = values[pos];
+		}
+		return column;
+	}
+
+	public int numRecords() {
+		return numRecords;
+	}
+
+	public int numAttributes() {
+		return numAttributes;
+	}
+
+	/**
+	 * Returns the underlying array. Record i starts at position i*numAttributes(),
+	 * and the array may be longer than the values stored.
+	 * @return the underlying array.
+	 */
+	public double[] getValues() {
+		return values;
+	}
+
+	/**
+	 * Creates the records of the block. Each record is a view over a row of
+	 * the block, so no values are copied unless the unused capacity of the
+	 * block is large. The block cannot grow afterwards.
+	 * @return the list of records.
+	 */
+	public List<Record> toRecords() {
+		int used = numRecords * numAttributes;
+		if (values.length - used > (values.length >> 3))
+			values = Arrays.copyOf(values, used);
+		bound = true;
+
+		List<Record> records = new ArrayList<Record>(numRecords);
+		for (int i = 0; i < numRecords; i++) {
+			records.add(new Record(values, i * numAttributes, numAttributes));
+		}
+		return records;
+	}
+}
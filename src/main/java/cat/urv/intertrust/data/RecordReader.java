@@ -0,0 +1,150 @@
+package cat.urv.intertrust.data;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Sequential reader of the records of a text file with a first line of
+ * attribute names separated by tabs. The records are read one at a time into
+ * a reusable buffer, so only a line of the file is held in memory. The values
+ * are separated by ", " or by tabs, a line can hold several records separated
+ * by ';', ',' is accepted as decimal separator and missing values ("?") are
+ * returned as NaN. Records with a wrong number of values or with values that
+ * are not numbers are skipped.
+ */
+public class RecordReader implements Closeable {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private File file;
+	private BufferedReader in;
+	private String[] header;
+	private String line;
+	private int start;
+
+	/**
+	 * Constructor. Reads the line with the names of the attributes.
+	 * @param datafile the name of the file.
+	 */
+	public RecordReader(String datafile) throws IOException {
+		this.file = new File(datafile);
+		this.in = new BufferedReader(new FileReader(file), BUFFER_SIZE);
+
+		String first = in.readLine();
+		if (first == null) {
+			in.close();
+			throw new IOException("RecordReader: "+datafile+" is empty");
+		}
+		this.header = first.split("\t");
+	}
+
+	/**
+	 * Returns the names of the attributes, as written in the file.
+	 * @return the names of the attributes.
+	 */
+	public String[] getHeader() {
+		return header;
+	}
+
+	/**
+	 * Returns the attributes of the file, with the names cleaned as in a dataset.
+	 * @return the attributes.
+	 */
+	public List<Attribute> getAttributes() {
+		List<Attribute> attributes = new ArrayList<Attribute>(header.length);
+		for (String name : header) attributes.add(new Attribute(attributes.size(), Dataset.correctString(name)));
+		return attributes;
+	}
+
+	public int numAttributes() {
+		return header.length;
+	}
+
+	/**
+	 * Reads the next record of the file.
+	 * @param row the buffer where the values of the record are written.
+	 * @return TRUE if a record was read, and FALSE at the end of the file.
+	 */
+	public boolean next(double[] row) throws IOException {
+		while (true) {
+			if (line == null || start > line.length()) {
+				line = in.readLine();
+				if (line == null) return false;
+				start = 0;
+			}
+
+			int end = line.indexOf(';', start);
+			if (end < 0) end = line.length();
+
+			boolean valid = parseRecord(line, start, end, row);
+			start = end + 1;
+			if (valid) return true;
+		}
+	}
+
+	/**
+	 * Estimates the number of records of the file from the length of the line
+	 * of the last record read.
+	 * @return the estimated number of records.
+	 */
+	public int estimateRecords() {
+		long records = file.length() / ((line == null ? 0 : line.length()) + 1);
+		records += records >> 4;
+
+		return (int)Math.min(records, Integer.MAX_VALUE / Math.max(header.length, 1));
+	}
+
+	/**
+	 * Parses a record from a region of a line.
+	 * @return TRUE if the record has a correct value for every attribute.
+	 */
+	private boolean parseRecord(String line, int start, int end, double[] row) {
+		String sep = ", ";
+		end = trimSeparators(line, start, end, sep);
+
+		int pos = line.indexOf(sep, start);
+		if (pos < 0 || pos >= end) {
+			sep = "\t";
+			end = trimSeparators(line, start, end, sep);
+		}
+
+		int i = 0, from = start, to;
+		while (from <= end) {
+			if (i == header.length) return false;
+			to = line.indexOf(sep, from);
+			if (to < 0 || to > end) to = end;
+
+			String value = Dataset.correctString(line.substring(from, to)).replace(',', '.');
+			if (value.equals("?")) {
+				//imputed once all the values are loaded
+				row[i] = Double.NaN;
+			} else {
+				try {
+					row[i] = Double.parseDouble(value);
+				} catch (NumberFormatException e) {
+					return false;
+				}
+			}
+
+			i++;
+			from = to + sep.length();
+		}
+		return i == header.length;
+	}
+
+	/**
+	 * Skips the empty values at the end of a record.
+	 * @return the new end of the record.
+	 */
+	private static int trimSeparators(String line, int start, int end, String sep) {
+		while (end - start >= sep.length() && line.startsWith(sep, end - sep.length())) end -= sep.length();
+		return end;
+	}
+
+	public void close() throws IOException {
+		in.close();
+	}
+}
@@ -0,0 +1,95 @@
+package cat.urv.intertrust.data;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Buffered writer of records into a text file, one record per line. Each line
+ * is formatted into a reusable buffer and copied into a reusable output buffer,
+ * so writing a record does not create intermediate strings.
+ */
+public class RecordWriter implements Closeable {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private FileOutputStream out;
+	private FileChannel channel;
+	private ByteBuffer buffer;
+	private StringBuilder line = new StringBuilder(256);
+	private String separator;
+	private boolean decimalComma;
+
+	/**
+	 * Constructor.
+	 * @param namefile the name of the file.
+	 * @param separator the separator between the values of a record.
+	 * @param decimalComma TRUE to write ',' instead of '.' as decimal separator.
+	 * @param useChannel TRUE to write through a FileChannel with a direct buffer.
+	 */
+	public RecordWriter(String namefile, String separator, boolean decimalComma, boolean useChannel) throws IOException {
+		this.out = new FileOutputStream(namefile);
+		this.separator = separator;
+		this.decimalComma = decimalComma;
+
+		if (useChannel) {
+			this.channel = out.getChannel();
+			this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		} else {
+			this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		}
+	}
+
+	/**
+	 * Writes a record in a new line.
+	 * @param rec the record.
+	 */
+	public void write(Record rec) throws IOException {
+		line.setLength(0);
+		rec.appendTo(line, separator);
+		if (decimalComma) {
+			for (int i = 0; i < line.length(); i++) {
+				if (line.charAt(i) == '.') line.setCharAt(i, ',');
+			}
+		}
+		line.append('\n');
+
+		//the formatted values are plain ASCII
+		for (int i = 0; i < line.length(); i++) {
+			if (!buffer.hasRemaining()) flush();
+			buffer.put((byte)line.charAt(i));
+		}
+	}
+
+	/**
+	 * Writes all the records of a dataset.
+	 * @param dataset the dataset.
+	 */
+	public void write(Dataset dataset) throws IOException {
+		for (Record rec : dataset.toList()) {
+			write(rec);
+		}
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		if (channel != null) {
+			while (buffer.hasRemaining()) channel.write(buffer);
+		} else {
+			out.write(buffer.array(), 0, buffer.limit());
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Writes the pending records and closes the file.
+	 */
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package cat.urv.intertrust.data;
+import java.util.*;
+
+/**
+ * Per-attribute statistics of a dataset: mean, variance, minimum, maximum and,
+ * optionally, the covariance matrix. They are computed in a single pass over
+ * the records with Welford's update, so no intermediate lists are built.
+ * Variances and covariances are population ones (divided by n).
+ */
+public class Statistics {
+
+	private int numRecords;
+	private double[] mean;
+	private double[] variance;
+	private double[] min;
+	private double[] max;
+	private double[][] covariance;
+
+	/**
+	 * Constructor of already known statistics.
+	 * @param numRecords the number of records.
+	 * @param mean the means of the attributes.
+	 * @param variance the variances of the attributes.
+	 * @param min the minimum values of the attributes.
+	 * @param max the maximum values of the attributes.
+	 */
+	public Statistics(int numRecords, double[] mean, double[] variance, double[] min, double[] max) {
+		this.numRecords = numRecords;
+		this.mean = mean;
+		this.variance = variance;
+		this.min = min;
+		this.max = max;
+	}
+
+	/**
+	 * Computes the statistics of a list of records. NaN values are ignored
+	 * by the minimum and the maximum.
+	 * @param records the records.
+	 * @param numAttributes the number of attributes of the records.
+	 * @param withCovariance TRUE to compute the covariance matrix too.
+	 * @return the statistics.
+	 */
+	public static Statistics compute(List<Record> records, int numAttributes, boolean withCovariance) {
+		int m = numAttributes;
+		double[] mean = new double[m];
+		double[] m2 = new double[m];
+		double[] min = new double[m];
+		double[] max = new double[m];
+		double[][] comoment = withCovariance ? new double[m][m] : null;
+		double[] delta = new double[m];
+		Arrays.fill(min, Double.POSITIVE_INFINITY);
+		Arrays.fill(max, Double.NEGATIVE_INFINITY);
+
+		int n = 0;
+		for (Record r : records) {
+			n++;
+			for (int d = 0; d < m; d++) {
+				double x = r.getValue(d);
+				delta[d] = x - mean[d];
+				mean[d] += delta[d] / n;
+				m2[d] += delta[d] * (x - mean[d]);
+				if (x < min[d]) min[d] = x;
+				if (x > max[d]) max[d] = x;
+			}
+			if (withCovariance) {
+				for (int i = 0; i < m; i++) {
+					double[] row = comoment[i];
+					for (int j = 0; j <= i; j++) {
+						row[j] += delta[i] * (r.getValue(j) - mean[j]);
+					}
+				}
+			}
+		}
+
+		double[] variance = new double[m];
+		for (int d = 0; d < m; d++) {
+			mean[d] = (n > 0) ? mean[d] : Double.NaN;
+			variance[d] = m2[d] / n;
+		}
+
+		Statistics s = new Statistics(n, mean, variance, min, max);
+		if (withCovariance) {
+			for (int i = 0; i < m; i++) {
+				for (int j = 0; j <= i; j++) {
+					comoment[i][j] /= n;
+					comoment[j][i] = comoment[i][j];
+				}
+			}
+			s.covariance = comoment;
+		}
+		return s;
+	}
+
+	public int numRecords() {
+		return numRecords;
+	}
+
+	public int numAttributes() {
+		return mean.length;
+	}
+
+	public double getMean(int attribute) {
+		return mean[attribute];
+	}
+
+	public double getVariance(int attribute) {
+		return variance[attribute];
+	}
+
+	public double getMin(int attribute) {
+		return min[attribute];
+	}
+
+	public double getMax(int attribute) {
+		return max[attribute];
+	}
+
+	/**
+	 * Checks if the covariance matrix has been computed.
+	 * @return TRUE if the covariance matrix is available.
+	 */
+	public boolean hasCovariance() {
+		return covariance != null;
+	}
+
+	/**
+	 * Returns the covariance between two attributes.
+	 * @param i the first attribute.
+	 * @param j the second attribute.
+	 * @return the covariance.
+	 */
+	public double getCovariance(int i, int j) {
+		if (covariance == null)
+			throw new IllegalStateException("Statistics: the covariance matrix has not been computed");
+		return covariance[i][j];
+	}
+
+	/**
+	 * Returns a copy of the covariance matrix.
+	 * @return the covariance matrix.
+	 */
+	public double[][] getCovarianceMatrix() {
+		getCovariance(0, 0);
+		double[][] copy = new double[covariance.length][];
+		for (int i = 0; i < copy.length; i++) copy[i] = covariance[i].clone();
+		return copy;
+	}
+}
@@ -0,0 +1,120 @@
+package cat.urv.intertrust.data;
+
+/**
+ * Selects the k entries with the smallest (or largest) keys among the ones
+ * offered, using a bounded binary heap over primitive ids and keys. Selecting
+ * k of n entries costs O(n log k) without boxing. Entries with the same key
+ * are ranked by the lowest id.
+ */
+public class TopK {
+
+	private int k;
+	private boolean largest;
+	private int[] ids;
+	private double[] keys;	//negated when selecting the largest keys
+	private int size;
+
+	/**
+	 * Constructor.
+	 * @param k the number of entries to be selected.
+	 * @param largest TRUE to select the largest keys, FALSE to select the smallest ones.
+	 */
+	public TopK(int k, boolean largest) {
+		this.k = k;
+		this.largest = largest;
+		this.ids = new int[Math.max(k, 1)];
+		this.keys = new double[Math.max(k, 1)];
+	}
+
+	/**
+	 * Removes all the entries, so the selector can be reused.
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Checks if k entries have been selected.
+	 * @return TRUE if the selector holds k entries.
+	 */
+	public boolean isFull() {
+		return size == k;
+	}
+
+	/**
+	 * Returns the key of the worst entry selected so far, the one an offered
+	 * entry has to beat once the selector is full.
+	 * @return the key of the worst entry selected.
+	 */
+	public double worstKey() {
+		return largest ? -keys[0] : keys[0];
+	}
+
+	/**
+	 * Offers an entry to the selector.
+	 * @param id the id of the entry.
+	 * @param key the key of the entry.
+	 */
+	public void offer(int id, double key) {
+		if (k <= 0) return;
+		if (largest) key = -key;
+
+		if (size < k) {
+			int i = size++;
+			while (i > 0) {
+				int p = (i - 1) >>> 1;
+				if (!after(key, id, keys[p], ids[p])) break;
+				keys[i] = keys[p];
+				ids[i] = ids[p];
+				i = p;
+			}
+			keys[i] = key;
+			ids[i] = id;
+		} else if (after(keys[0], ids[0], key, id)) {
+			siftDown(id, key, size);
+		}
+	}
+
+	/**
+	 * Returns the ids of the entries selected, from the best to the worst.
+	 * @return the ids of the entries selected.
+	 */
+	public int[] sortedIds() {
+		int[] heapIds = ids.clone();
+		double[] heapKeys = keys.clone();
+
+		int[] result = new int[size];
+		for (int n = size; n > 0; n--) {
+			result[n - 1] = ids[0];
+			siftDown(ids[n - 1], keys[n - 1], n - 1);
+		}
+
+		ids = heapIds;
+		keys = heapKeys;
+		return result;
+	}
+
+	//heap order: the root is the worst entry
+	private static boolean after(double k1, int id1, double k2, int id2) {
+		return k1 > k2 || (k1 == k2 && id1 > id2);
+	}
+
+	private void siftDown(int id, double key, int n) {
+		int i = 0;
+		while (true) {
+			int c = 2 * i + 1;
+			if (c >= n) break;
+			if (c + 1 < n && after(keys[c + 1], ids[c + 1], keys[c], ids[c])) c++;
+			if (!after(keys[c], ids[c], key, id)) break;
+			keys[i] = keys[c];
+			ids[i] = ids[c];
+			i = c;
+		}
+		keys[i] = key;
+		ids[i] = id;
+	}
+}
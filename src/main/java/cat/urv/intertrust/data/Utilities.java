@@ -5,6 +5,10 @@ import java.util.*;
 
 public class Utilities {
 
+	//minimum number of values to argsort by radix sort
+	private static final int RADIX_THRESHOLD = 1 << 12;
+	private static final int RADIX_BITS = 11;
+	private static final long RADIX_MASK = (1 << RADIX_BITS) - 1;
 	
     /**
      * Sort a map by values in ascending order keeping the duplicate entries.
@@ -61,6 +65,104 @@ public class Utilities {
 	
 	
 	
+	/**
+	 * Returns the positions of the values in ascending order of value. The sort
+	 * is stable, so equal values keep their relative order.
+	 * @param values the values.
+	 * @return the positions of the values, from the smallest to the largest.
+	 */
+	public static int[] argsort(double[] values) {
+		int n = values.length;
+		if (n >= RADIX_THRESHOLD) return radixArgsort(values);
+		
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) order[i] = i;
+
+		//the keys are sorted along with the positions, so they are read sequentially
+		double[] keys = values.clone();
+
+		//insertion sort of short runs, merged bottom-up
+		final int RUN = 32;
+		for (int lo = 0; lo < n; lo += RUN) {
+			int hi = Math.min(lo + RUN, n);
+			for (int i = lo + 1; i < hi; i++) {
+				int id = order[i];
+				double key = keys[i];
+				int j = i - 1;
+				while (j >= lo && Double.compare(keys[j], key) > 0) {
+					order[j + 1] = order[j];
+					keys[j + 1] = keys[j];
+					j--;
+				}
+				order[j + 1] = id;
+				keys[j + 1] = key;
+			}
+		}
+
+		int[] tmp = new int[n];
+		double[] tmpKeys = new double[n];
+		for (int width = RUN; width < n; width *= 2) {
+			for (int lo = 0; lo < n - width; lo += 2 * width) {
+				int mid = lo + width, hi = Math.min(lo + 2 * width, n);
+				if (Double.compare(keys[mid - 1], keys[mid]) <= 0) continue;
+				System.arraycopy(order, lo, tmp, lo, hi - lo);
+				System.arraycopy(keys, lo, tmpKeys, lo, hi - lo);
+				int i = lo, j = mid, o = lo;
+				while (i < mid && j < hi) {
+					if (Double.compare(tmpKeys[i], tmpKeys[j]) <= 0) {
+						keys[o] = tmpKeys[i];
+						order[o++] = tmp[i++];
+					} else {
+						keys[o] = tmpKeys[j];
+						order[o++] = tmp[j++];
+					}
+				}
+				System.arraycopy(tmp, i, order, o, mid - i);
+				System.arraycopy(tmpKeys, i, keys, o, mid - i);
+				o += mid - i;
+				System.arraycopy(tmp, j, order, o, hi - j);
+				System.arraycopy(tmpKeys, j, keys, o, hi - j);
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * Stable argsort by a least significant digit radix sort of the bits of the
+	 * values, mapped to longs with the order of Double.compare. It costs O(n),
+	 * without comparisons, and passes where all the values share the digit
+	 * are skipped.
+	 */
+	private static int[] radixArgsort(double[] values) {
+		int n = values.length;
+		long[] keys = new long[n], tmpKeys = new long[n];
+		int[] order = new int[n], tmp = new int[n];
+		for (int i = 0; i < n; i++) {
+			long bits = Double.doubleToLongBits(values[i]);
+			keys[i] = (bits < 0) ? ~bits : bits ^ Long.MIN_VALUE;
+			order[i] = i;
+		}
+
+		int[] count = new int[(1 << RADIX_BITS) + 1];
+		for (int shift = 0; shift < 64; shift += RADIX_BITS) {
+			Arrays.fill(count, 0);
+			for (int i = 0; i < n; i++) count[(int)((keys[i] >>> shift) & RADIX_MASK) + 1]++;
+			if (count[(int)((keys[0] >>> shift) & RADIX_MASK) + 1] == n) continue;
+
+			for (int d = 1; d < count.length; d++) count[d] += count[d - 1];
+			for (int i = 0; i < n; i++) {
+				int pos = count[(int)((keys[i] >>> shift) & RADIX_MASK)]++;
+				tmpKeys[pos] = keys[i];
+				tmp[pos] = order[i];
+			}
+
+			long[] k = keys; keys = tmpKeys; tmpKeys = k;
+			int[] o = order; order = tmp; tmp = o;
+		}
+		return order;
+	}
+
+
 	/**
 	 * A numeric attribute can be integer or double. This method checks if 
 	 * the attribute is integer.
@@ -1,5 +1,6 @@
 package cat.urv.intertrust.main;
 
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -9,9 +10,13 @@ import java.util.List;
 
 import cat.urv.intertrust.data.Attribute;
 import cat.urv.intertrust.data.Dataset;
+import cat.urv.intertrust.data.RandomStream;
+import cat.urv.intertrust.data.RecordReader;
 import cat.urv.intertrust.methods.DataShuffling;
 import cat.urv.intertrust.methods.Distortions;
+import cat.urv.intertrust.methods.DistributedMicroaggregation;
 import cat.urv.intertrust.methods.GaussianNoise;
+import cat.urv.intertrust.methods.Microaggregation;
 
 /**
  * @author Crises Research Group - URV 2014.
@@ -19,8 +24,17 @@ import cat.urv.intertrust.methods.GaussianNoise;
 		-resolution: Add resolution of the position. {pos1 pos2 ... posN res
 		-resolution2: Approximates to N decimal digits. {pos1 pos2 ... posN N}
 		-noise: Adds gausian noise.
+		-scalednoise: Adds gausian noise scaled to the variance of each attribute. {alpha}
+		-corrnoise: Adds gausian noise correlated as the attributes. {alpha}
+		-microhybrid: Replicates of microhybrid synthetic data. {k replicates [-confidential att1,...,attN]}
+		-distributed: Microaggregation distributed over worker processes. {k workers [-quasi att1,...,attN] [-method MDAV_ID|MDAV_SWAP] [-workerheap size]}
 		-shuffle: Data shuffling.
 		-in: Database input path.
+		-threads: Number of threads used to load the database.
+		-projection: Groups the records by recursive projections instead of MDAV.
+		-shards: Number of shards grouped by MDAV in parallel.
+		-cache: Reuses a binary copy of the parsed database.
+		-seed: Seed of the random numbers, to reproduce a run.
  *
  */
 public class Main {
@@ -29,6 +43,7 @@ public class Main {
 		
 		try {
 			if (args.length <= 0) throw new IllegalArgumentException("Operation not found!"); 
+			setSeed(args);
 			
 			/*if (args[0].equalsIgnoreCase("-shuffle")) {
 				originalDataset = loadDataset(args);
@@ -94,6 +109,68 @@ public class Main {
 				
 				GaussianNoise.addGaussianNoise(originalDataset, mean, variance).toFile("noise.txt");
 				System.out.println("Noise added properly.");
+			} else if (args[0].equalsIgnoreCase("-scalednoise") || args[0].equalsIgnoreCase("-corrnoise")) {
+				originalDataset = loadDataset(args);
+				double alpha = 0.0f;
+				try {
+					alpha = Double.valueOf(args[1]);
+				} catch (IllegalArgumentException iae) {
+					System.out.println("Error loading alpha.");
+					usage();
+				}
+				
+				if (args[0].equalsIgnoreCase("-scalednoise"))
+					GaussianNoise.addScaledNoise(originalDataset, alpha).toFile("noise.txt");
+				else
+					GaussianNoise.addCorrelatedNoise(originalDataset, alpha).toFile("noise.txt");
+				System.out.println("Noise added properly.");
+			} else if (args[0].equalsIgnoreCase("-microhybrid")) {
+				originalDataset = loadDataset(args);
+				int k = 3, replicates = 1;
+				try {
+					k = Integer.valueOf(args[1]);
+					replicates = Integer.valueOf(args[2]);
+				} catch (IllegalArgumentException iae) {
+					System.out.println("Error loading k & replicates.");
+					usage();
+				}
+				
+				setConfidentials(originalDataset, args);
+				
+				try {
+					Microaggregation.microHybrid(originalDataset, k, replicates, isProjection(args), getShards(args), new File("."));
+					System.out.println("Replicates generated properly.");
+				} catch (IOException io) {
+					System.out.println("ERROR writing the replicates.");
+				}
+			} else if (args[0].equalsIgnoreCase("-distributed")) {
+				int k = 3, workers = 1;
+				try {
+					k = Integer.valueOf(args[1]);
+					workers = Integer.valueOf(args[2]);
+				} catch (RuntimeException e) {
+					throw new IllegalArgumentException("Error loading k & workers.");
+				}
+				if (k < 1 || workers < 1) throw new IllegalArgumentException("Error loading k & workers.");
+				
+				String datafile = getOption(args, "-in");
+				if (datafile == null || !new File(datafile).isFile())
+					throw new IllegalArgumentException("Dataset not found. Please review it!");
+				
+				String method = getOption(args, "-method");
+				DistributedMicroaggregation distributed = new DistributedMicroaggregation(workers, 
+						method == null ? DistributedMicroaggregation.MDAV_ID : method.toUpperCase());
+				distributed.setWorkerHeap(getOption(args, "-workerheap"));
+				distributed.setProjection(isProjection(args));
+				
+				try {
+					distributed.run(datafile, getQuasiIdentifiers(datafile, args), k, "distributed.txt");
+					System.out.println("Microaggregation distributed properly on " + distributed.getNumShards() + " shards.");
+				} catch (IOException io) {
+					System.out.println("ERROR in the distributed microaggregation: " + io.getMessage());
+				} catch (InterruptedException ie) {
+					System.out.println("ERROR in the distributed microaggregation: interrupted.");
+				}
 			} else if (args[0].equalsIgnoreCase("-mdav")) {
 				
 			} else if (args[0].equalsIgnoreCase("-help")){
@@ -114,21 +191,145 @@ public class Main {
 		System.out.println("-help: Show this usage.");
 		System.out.println("-reslos: Modifies resolution of the position. {pos1 pos2 ... posN res}");
 		System.out.println("-approx: Approximates to N decimal digits. {pos1 pos2 ... posN N}");
-		System.out.println("-noise: Adds gausian noise. It requires as arguments mean and variance.");
+		System.out.println("-noise: Adds gausian noise, drawn independently for each value. It requires as arguments mean and variance.");
+		System.out.println("-scalednoise: Adds gausian noise with a variance proportional to the variance of each attribute. It requires as argument the proportion alpha.");
+		System.out.println("-corrnoise: Adds gausian noise with a covariance proportional to the covariance of the attributes. It requires as argument the proportion alpha.");
+		System.out.println("-microhybrid: Generates replicates of microhybrid synthetic data (MH1.data, MHExcel1.data, ...) from a single microaggregation. It requires as arguments k and the number of replicates.");
+		System.out.println("\t-confidential attribute1,attribute2,....,attributeN (all the attributes by default)");
+		System.out.println("-distributed: Microaggregates the database on worker processes, one per shard, and writes distributed.txt. It requires as arguments k and the number of workers. The database is streamed from the file, so it does not need to fit in memory.");
+		System.out.println("\t-quasi attribute1,attribute2,....,attributeN: The quasi-identifiers (all the attributes by default)");
+		System.out.println("\t-method MDAV_ID|MDAV_SWAP: The microaggregation run by the workers (MDAV_ID by default)");
+		System.out.println("\t-workerheap size: The maximum heap of each worker, as given to -Xmx (e.g. 2g)");
 		//System.out.println("-shuffle: Data shuffling. It requires the predictors as parameter.");
 		//System.out.println("\t-predictors predictor1,predictor2,....,predictorN");
 		System.out.println("-in: Database input path. Each attribute must be separated between tabs, with a first line of attribute names.");
+		System.out.println("-threads: Number of threads used to load the database. With more than one, the file is memory-mapped and parsed in parallel.");
+		System.out.println("-projection: Groups the records by recursive projections instead of MDAV, faster but with more information loss.");
+		System.out.println("-shards: Splits the database into this number of shards, grouped by MDAV in parallel (1 by default).");
+		System.out.println("-cache: Keeps a binary copy of the parsed database next to it (input path + .cache) and reuses it while the database is not modified.");
+		System.out.println("-seed: Seed of the random numbers. Runs with the same seed and parameters give the same results, whatever the number of threads.");
+	}
+	
+	private static void setSeed(String args[]) {
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equalsIgnoreCase("-seed")) {
+				try {
+					RandomStream.setGlobalSeed(Long.valueOf(args[i+1]));
+				} catch (RuntimeException e) {
+					throw new IllegalArgumentException("Incorrect seed!");
+				}
+			}
+		}
+	}
+	
+	private static String getOption(String args[], String option) {
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equalsIgnoreCase(option)) {
+				if (i+1 >= args.length) throw new IllegalArgumentException("Incorrect value of " + option + "!");
+				return args[i+1];
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the quasi-identifiers listed after -quasi, or all the attributes
+	 * of the file if none is listed.
+	 */
+	private static List<String> getQuasiIdentifiers(String datafile, String args[]) throws IOException {
+		List<String> quasiIdentifiers = new ArrayList<String>();
+		String names = getOption(args, "-quasi");
+		if (names != null) {
+			for (String name : names.split(",")) quasiIdentifiers.add(name.trim());
+			return quasiIdentifiers;
+		}
+		
+		RecordReader reader = new RecordReader(datafile);
+		try {
+			for (Attribute a : reader.getAttributes()) quasiIdentifiers.add(a.getName());
+		} finally {
+			reader.close();
+		}
+		return quasiIdentifiers;
+	}
+	
+	private static boolean isProjection(String args[]) {
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equalsIgnoreCase("-projection")) return true;
+		}
+		return false;
+	}
+	
+	private static int getShards(String args[]) {
+		int shards = 1;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equalsIgnoreCase("-shards")) {
+				try {
+					shards = Integer.valueOf(args[i+1]);
+				} catch (RuntimeException e) {
+					throw new IllegalArgumentException("Incorrect number of shards!");
+				}
+				if (shards < 1) throw new IllegalArgumentException("Incorrect number of shards!");
+			}
+		}
+		return shards;
+	}
+	
+	/**
+	 * Marks as confidential the attributes listed after -confidential, or all
+	 * of them if none is listed. The names are matched ignoring the case and
+	 * the surrounding spaces, as the names of the dataset are lower-cased
+	 * when it is loaded.
+	 */
+	private static void setConfidentials(Dataset dataset, String args[]) {
+		List<String> confidentials = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equalsIgnoreCase("-confidential")) {
+				if (i+1 >= args.length) throw new IllegalArgumentException("Confidential attributes not found!");
+				for (String name : args[i+1].split(",")) confidentials.add(name.trim());
+			}
+		}
+		
+		for (String name : confidentials) {
+			boolean found = false;
+			for (int i = 0; i < dataset.numAttributes(); i++) {
+				if (dataset.getAttribute(i).getName().equalsIgnoreCase(name)) found = true;
+			}
+			if (!found) throw new IllegalArgumentException("Confidential attribute not found: "+name);
+		}
+		
+		for (int i = 0; i < dataset.numAttributes(); i++) {
+			Attribute a = dataset.getAttribute(i);
+			boolean confidential = confidentials.isEmpty();
+			for (String name : confidentials) {
+				if (a.getName().equalsIgnoreCase(name)) confidential = true;
+			}
+			if (confidential) a.setConfidentiality("confidential");
+		}
 	}
 	
 	private static Dataset loadDataset(String args[]) {
 		Dataset dataset = new Dataset();
 		boolean loaded = false;
+		int threads = 1;
+		boolean cache = false;
+		
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equalsIgnoreCase("-cache")) cache = true;
+			if (args[i].equalsIgnoreCase("-threads")) {
+				try {
+					threads = Integer.valueOf(args[i+1]);
+				} catch (RuntimeException e) {
+					throw new IllegalArgumentException("Incorrect number of threads!");
+				}
+			}
+		}
 		
 		for (int i = 0; i < args.length; i++) {
 			String arg = args[i];
 			if (arg.equalsIgnoreCase("-in")) {
 				try {
-					dataset.load(args[i+1]);
+					dataset.load(args[i+1], threads, cache);
 					loaded = true;
 				} catch (Exception ex) {
 					System.out.println("ERROR loading database. Please review it.");
@@ -1,113 +1,211 @@
 package cat.urv.intertrust.methods;
 
-import org.apache.commons.math3.distribution.*;
-import org.apache.commons.math3.linear.LUDecomposition;
 import org.apache.commons.math3.linear.MatrixUtils;
 import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.stat.correlation.SpearmansCorrelation;
-import org.apache.commons.math3.stat.ranking.NaNStrategy;
-import org.apache.commons.math3.stat.ranking.NaturalRanking;
-import org.apache.commons.math3.stat.ranking.TiesStrategy;
 
 import cat.urv.intertrust.data.Dataset;
+import cat.urv.intertrust.data.RandomStream;
+import cat.urv.intertrust.data.Utilities;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class DataShuffling {
 
 	/**
+	 * Rank-based shuffling of the response attributes of a dataset. The values
+	 * are processed as primitive columns: the ranking of the attributes, their
+	 * normal scores and the reverse mapping of the responses are computed one
+	 * column per task on the pool of Microaggregation.
 	 * @param Dataset with the values.
 	 * @return Returns a shuffled dataset.
 	 */
 	public static Dataset ShuffleData(Dataset dataset){
+		final int n = dataset.numRecords();
 		int numAtts = dataset.getAttributeList().size();
-		dataset.loadVariances(true);
 		
-		RealMatrix data = MatrixUtils.createRealMatrix(dataset.numRecords(), numAtts);
-
-		for (int i = 0; i < numAtts; i++) {
-			data.setColumn(i, dataset.getAttributeDoubleValues(i));
-		}
-				
-		double[][] ranks = computeRanks(data);
-		double[][] perc =  percentileRanks(ranks);
+		//Get Predictors Index and Responses.
+		final List<Integer> indPredictors = dataset.getPredictors();
+		final List<Integer> indResponses = dataset.getResponses();
+		
+		//values, order and ranks of each attribute
+		final double[][] columns = dataset.toColumns();
+		final int[][] orders = new int[numAtts][];
+		final double[][] scores = new double[numAtts][];
+		forEachColumn(numAtts, new ColumnProcessor() {
+			public void process(int i) {
+				orders[i] = Utilities.argsort(columns[i]);
+				scores[i] = ranks(columns[i], orders[i]);
+			}
+		});
+		
+		//correlation of the ranks and conditional distribution of the responses
+		ShuffleModel model = new ShuffleModel(indPredictors, indResponses, columns, orders, scores);
 		
-		double[][] normInvers = inverseNormal(perc);
+		//normal scores of the percentile ranks, in place of the ranks
+		forEachColumn(numAtts, new ColumnProcessor() {
+			public void process(int i) {
+				double[] score = scores[i];
+				for (int j = 0; j < n; j++) score[j] = qnorm((score[j] - 0.5)/n);
+			}
+		});
 		
-		SpearmansCorrelation sc = new SpearmansCorrelation();
-		RealMatrix corRanks = sc.computeCorrelationMatrix(data);
+		//conditional means of the normal scores of the responses
+		final double[][] yStar = model.conditionalMeans(scores, n);
 		
-		for (int i = 0; i < corRanks.getRowDimension(); i++) {
-			for (int j = 0; j < corRanks.getColumnDimension(); j++) {
-				double entry = corRanks.getEntry(i, j);
-				
-				entry = 2 * Math.sin((Math.PI*entry)/6);
-				corRanks.setEntry(i, j, entry);
+		if (yStar.length == 0) return dataset;
+		
+		model.addResiduals(yStar, RandomStream.next("ShuffleData"));
+		
+		//each response takes the original value with the rank of its shuffled value
+		forEachColumn(yStar.length, new ColumnProcessor() {
+			public void process(int i) {
+				int att = indResponses.get(i);
+				reverseMap(columns[att], orders[att], yStar[i]);
 			}
-		}
+		});
 		
-		//Get Predictors Index and Responses.
-		List<Integer> indPredictors = dataset.getPredictors();
-		List<Integer> indResponses = dataset.getResponses();
+		dataset.setAttributes(indResponses, yStar);
 		
-		RealMatrix responses = MatrixUtils.createRealMatrix(data.getRowDimension(), indResponses.size());
-		for (int i = 0; i < indResponses.size(); i++) {
-			responses.setColumn(i, data.getColumn(indResponses.get(i)));
+		return dataset;
+	}
+	
+	/**
+	 * Ranks the values of a column, as NaturalRanking with NaNStrategy.FIXED
+	 * and TiesStrategy.AVERAGE: tied values get the average of their ranks and
+	 * NaN values are not ranked.
+	 * @param column the values.
+	 * @param order the positions of the values in ascending order.
+	 * @return the ranks of the values.
+	 */
+	static double[] ranks(double[] column, int[] order) {
+		int n = column.length;
+		double[] ranks = new double[n];
+		
+		//NaN values are sorted last
+		int j = 0;
+		while (j < n && !Double.isNaN(column[order[j]])) {
+			int end = j + 1;
+			while (end < n && Double.compare(column[order[end]], column[order[j]]) == 0) end++;
+			
+			double rank = (j + 1 + end) / 2.0;
+			for (int t = j; t < end; t++) ranks[order[t]] = rank;
+			j = end;
 		}
+		for (; j < n; j++) ranks[order[j]] = Double.NaN;
 		
-		RealMatrix pxs = reduceMatrix(indResponses, indPredictors, corRanks);
-		RealMatrix pxx = reduceMatrix(indResponses, indResponses, corRanks);
-		RealMatrix psx = reduceMatrix(indPredictors, indResponses, corRanks);
+		return ranks;
+	}
+	
+	/**
+	 * Computes the means of a set of columns and the sums of the products of
+	 * their deviations from the means, one row of the matrix per task.
+	 * @param columns the columns.
+	 * @param means the array receiving the means of the columns.
+	 * @return the sums of the products of the deviations of each pair of columns.
+	 */
+	static double[][] comoments(final double[][] columns, final double[] means) {
+		final int m = columns.length;
+		final double[][] cov = new double[m][m];
+		
+		forEachColumn(m, new ColumnProcessor() {
+			public void process(int i) {
+				double sum = 0;
+				for (double v : columns[i]) sum += v;
+				means[i] = sum / columns[i].length;
+			}
+		});
+		
+		forEachColumn(m, new ColumnProcessor() {
+			public void process(int i) {
+				double[] x = columns[i];
+				for (int j = i; j < m; j++) {
+					double[] y = columns[j];
+					double sum = 0;
+					for (int t = 0; t < x.length; t++) sum += (x[t] - means[i]) * (y[t] - means[j]);
+					cov[i][j] = sum;
+				}
+			}
+		});
 		
-		RealMatrix pssinv = new LUDecomposition(reduceMatrix(indPredictors, indPredictors, corRanks)).getSolver().getInverse();
+		for (int i = 0; i < m; i++) {
+			for (int j = 0; j < i; j++) cov[i][j] = cov[j][i];
+		}
+		return cov;
+	}
+	
+	/**
+	 * Computes the Pearson's correlation matrix from the co-moments of a set of columns.
+	 * @param comoments the sums of the products of the deviations of each pair of columns.
+	 * @return the correlation matrix.
+	 */
+	static RealMatrix correlation(double[][] comoments) {
+		int m = comoments.length;
+		RealMatrix cor = MatrixUtils.createRealMatrix(m, m);
+		for (int i = 0; i < m; i++) {
+			cor.setEntry(i, i, 1);
+			for (int j = i + 1; j < m; j++) {
+				double c = comoments[i][j] / Math.sqrt(comoments[i][i] * comoments[j][j]);
+				cor.setEntry(i, j, c);
+				cor.setEntry(j, i, c);
+			}
+		}
 		
-	    double[][] responses1 = new double[normInvers.length][indResponses.size()];
-	    for (int i = 0; i < responses1.length; i++) {
-	    	for (int j = 0; j < indResponses.size(); j++) {
-	    		responses1[i][j] = normInvers[i][indResponses.get(j)];
-	    	}
-	    }
-	    
-	    double[][] predictors1 = new double[normInvers.length][indPredictors.size()];
-	    for (int i = 0; i < responses1.length; i++) {
-	    	for (int j = 0; j < indPredictors.size(); j++) {
-	    		predictors1[i][j] = normInvers[i][indPredictors.get(j)];
-	    	}
-	    }
-	    
-	    RealMatrix mPred1 = MatrixUtils.createRealMatrix(predictors1);
-	    RealMatrix Ystar1 = mPred1.multiply(pxs.multiply(pssinv).transpose());
-	    RealMatrix sigma = pxx.subtract(pxs.multiply(pssinv).multiply(psx));
-	    
-	    MultivariateNormalDistribution e1 = new MultivariateNormalDistribution(new double[indResponses.size()], sigma.getData());
-	    double[][] sample = e1.sample(data.getRowDimension());
-	    RealMatrix yStar = Ystar1.add(MatrixUtils.createRealMatrix(sample));    
-	    
-	    RealMatrix result = MatrixUtils.createRealMatrix(reverseMap(responses , yStar)); 
-	    
-	    int index = 0;
-	    for (int i : indResponses) {
-	    	dataset.setAttribute(i, result.getColumn(index));
-	    	index++;
-	    }
-	    
-		return dataset;
+		return cor;
 	}
 	
-	private static double[][] computeRanks(RealMatrix data) {
-		NaturalRanking naturalRanking = new NaturalRanking(NaNStrategy.FIXED, TiesStrategy.AVERAGE);
+	/**
+	 * Replaces each shuffled value by the original value with the same rank.
+	 * @param column the original values.
+	 * @param order the positions of the original values in ascending order.
+	 * @param shuffled the shuffled values, replaced in place.
+	 */
+	static void reverseMap(double[] column, int[] order, double[] shuffled) {
+		int[] orderY = Utilities.argsort(shuffled);
 		
-		RealMatrix ranks = MatrixUtils.createRealMatrix(data.getRowDimension(), data.getColumnDimension());
+		for (int j = 0; j < column.length; j++) {
+			shuffled[orderY[j]] = column[order[j]]; 
+		}
+	}
+	
+	/**
+	 * Processing of a column of the dataset.
+	 */
+	interface ColumnProcessor {
+		void process(int column);
+	}
+	
+	/**
+	 * Processes a number of columns, one column per task on the pool of Microaggregation.
+	 */
+	static void forEachColumn(int numColumns, final ColumnProcessor processor) {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(numColumns);
+		for (int i = 0; i < numColumns; i++) {
+			final int column = i;
+			tasks.add(new Callable<Void>() {
+				public Void call() {
+					processor.process(column);
+					return null;
+				}
+			});
+		}
 		
-		for (int i = 0; i < data.getColumnDimension(); i++) {
-			ranks.setColumn(i, naturalRanking.rank(data.getColumn(i)));
+		for (Future<Void> result : Microaggregation.getPool().invokeAll(tasks)) {
+			try {
+				result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("DataShuffling: interrupted", e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("DataShuffling: shuffling failed", e.getCause());
+			}
 		}
-			
-		return ranks.getData();
 	}
 
 	public static Dataset FishYatesShuffling(Dataset dst, boolean confidentiality) {
-	    Random rnd = new Random();
+	    Random rnd = RandomStream.next("FishYatesShuffling");
 	    
 	    for (int att = 0; att < dst.numAttributes(); att++) {
 	    	if ((!confidentiality && dst.getAttribute(att).isQuasiIdentifier()) || (confidentiality && dst.getAttribute(att).isConfidential())) {
@@ -129,97 +227,18 @@ public class DataShuffling {
 	    return dst;
 	}
 	
-	private static double[][] percentileRanks (double[][] ranks) {
-		double[][] percentile = new double[ranks.length][ranks[0].length];
-		
-		for (int i = 0; i < ranks.length; i++) {
-			for (int j = 0; j < ranks[i].length; j++) {
-				percentile[i][j] = (ranks[i][j] - 0.5)/ranks.length;
-			}
-		}
-		
-		return percentile;
-	}
-	
-	
-	private static double[][] inverseNormal (double[][] data) {
-		double[][] result = new double[data.length][data[0].length];
-		
-		for (int i = 0; i < data.length; i++) {
-			for (int j = 0; j < data[i].length; j++) {
-				result[i][j] = qnorm(data[i][j]);
-			}
-		}
-		
-		return result;
-	}
-
-	private static RealMatrix reduceMatrix (List<Integer> initList, List<Integer> endList, RealMatrix matrix) {
+	static RealMatrix reduceMatrix (List<Integer> initList, List<Integer> endList, RealMatrix matrix) {
 		RealMatrix rm = MatrixUtils.createRealMatrix(initList.size(), endList.size());
-		int numRow = 0;
-		for (int row : initList) {
-			double[] entireRow = matrix.getRow(row);
-			int i = 0;
-			double[] defRow = new double[endList.size()];
-			
-			for (int col : endList) {
-				defRow[i] = entireRow[col];
-				i++;
+		for (int i = 0; i < initList.size(); i++) {
+			for (int j = 0; j < endList.size(); j++) {
+				rm.setEntry(i, j, matrix.getEntry(initList.get(i), endList.get(j)));
 			}
-			
-			rm.setRow(numRow, defRow);
-			numRow++;
 		}
 		
 		return rm;
 	}
 	
-	private static double[][] reverseMap (RealMatrix x, RealMatrix y) {
-		NaturalRanking naturalRanking = new NaturalRanking(NaNStrategy.FIXED, TiesStrategy.AVERAGE);
-		
-		RealMatrix defData = MatrixUtils.createRealMatrix(x.getRowDimension(), x.getColumnDimension());
-		
-		for (int i = 0; i < x.getColumnDimension(); i++) {
-			double[] column = x.getColumn(i);
-			double[] reversedColumn = y.getColumn(i); 
-			
-			double[] orderY = naturalRanking.rank(reversedColumn); 
-			orderY = order(orderY);
-			
-			double[] orderX = naturalRanking.rank(column); 
-			orderX = order(orderX);
-						
-			for (int j = 0; j < orderX.length; j++) {
-				column[(int)(orderX[j])] = column[(int)(orderY[j])]; 
-			}
-						
-			for (int j = 0; j < column.length; j++) {
-				reversedColumn[(int)(orderY[j])] = column[(int)(orderX[j])]; 
-			}
-			
-			defData.setColumn(i, reversedColumn);
-		}
-			
-		return defData.getData();
-	}	  
-	  
-	
-	private static double[] order(double[] orderX) {
-		double[] order = new double[orderX.length];
-		List<Double> values = new ArrayList<Double>(); 
-		
-		for (double d : orderX) values.add(d);
-		
-		int i = 0;
-		while (i < order.length) { 
-			order[i] = values.indexOf(Collections.min(values));
-			values.set((int)order[i], Double.MAX_VALUE);
-			i++;
-		}
-		return order;
-	}
-
-	private static double qnorm(double p) {
+	static double qnorm(double p) {
 		double a0 = 2.515517;
 		double a1 = 0.802853;
 		double a2 = 0.010328;
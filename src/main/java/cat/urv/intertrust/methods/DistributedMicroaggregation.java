@@ -0,0 +1,638 @@
+package cat.urv.intertrust.methods;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import cat.urv.intertrust.data.*;
+
+/**
+ * Microaggregation distributed over worker processes. The coordinator streams
+ * the input file, splits its records into spatially coherent shards of their
+ * quasi-identifiers, writes each shard in the binary format of DatasetCache
+ * and launches a JVM per shard. Each worker runs MDAV_ID or MDAV_SWAP on its
+ * shard and writes back the result, in the same binary format, and its groups.
+ * The coordinator streams the results into the output file with the records in
+ * their original order, and merges the groups into a single partition.
+ *
+ * The input file is read three times: to find the range of the attributes and
+ * to take a sample of the quasi-identifiers, on which the shard boundaries are
+ * placed; to assign each record to its shard and compute the statistics of the
+ * dataset; and to write the shards. The coordinator only holds the sample, the
+ * shard of each record and the groups, and a worker only holds its shard, so
+ * the size of the dataset is not limited by the heap of a single JVM.
+ *
+ * The statistics of the whole dataset are written into every shard file, and
+ * the workers standardize the distances with its variances, as parallelMDAV
+ * does with the shards of Microaggregation.shard(). The missing values are
+ * imputed by the coordinator, with random values in the range of their
+ * attribute drawn from a stream of their record, so every pass reads the same
+ * values.
+ */
+public class DistributedMicroaggregation {
+
+	public static final String MDAV_ID = "MDAV_ID";
+	public static final String MDAV_SWAP = "MDAV_SWAP";
+
+	//number of records sampled to place the shard boundaries
+	private static final int SAMPLE_SIZE = 1 << 16;
+
+	private int workers;
+	private String method;
+	private String workerHeap;
+	private int workerThreads;
+	private boolean projection;
+	private List<List<Integer>> groups;
+	private int numShards;
+
+	/**
+	 * Constructor.
+	 * @param workers the number of worker processes, one per shard.
+	 * @param method the method run by the workers, MDAV_ID or MDAV_SWAP.
+	 */
+	public DistributedMicroaggregation(int workers, String method) {
+		if (!MDAV_ID.equals(method) && !MDAV_SWAP.equals(method))
+			throw new IllegalArgumentException("DistributedMicroaggregation: unknown method " + method);
+		this.workers = Math.max(workers, 1);
+		this.method = method;
+		this.workerThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / this.workers);
+	}
+
+	/**
+	 * Sets the maximum heap of the worker processes.
+	 * @param heap the maximum heap, as given to -Xmx (e.g. "2g"), or null for the default one.
+	 */
+	public void setWorkerHeap(String heap) {
+		this.workerHeap = heap;
+	}
+
+	/**
+	 * Sets the number of threads of the pool of each worker process. By
+	 * default the available processors are divided among the workers.
+	 * @param threads the number of threads of each worker.
+	 */
+	public void setWorkerThreads(int threads) {
+		this.workerThreads = Math.max(threads, 1);
+	}
+
+	/**
+	 * Sets the partitioning of the shards.
+	 * @param projection TRUE to group the records of each shard with
+	 * projectionMicroaggregation instead of MDAV.
+	 */
+	public void setProjection(boolean projection) {
+		this.projection = projection;
+	}
+
+	/**
+	 * Returns the number of shards of the last run, one per worker process.
+	 * Shards with fewer than 3k records are merged into a neighbour, so there
+	 * may be fewer shards than workers.
+	 * @return the number of shards.
+	 */
+	public int getNumShards() {
+		return numShards;
+	}
+
+	/**
+	 * Returns the groups of the last run.
+	 * @return the groups, as positions of the records in the input file.
+	 */
+	public List<List<Integer>> getGroups() {
+		return groups;
+	}
+
+	/**
+	 * Microaggregates the records of a file on the worker processes.
+	 * @param datafile the input file, with a first line of attribute names.
+	 * @param quasiIdentifiers the names of the quasi-identifiers.
+	 * @param k the microaggregation parameter.
+	 * @param resultFile the output file, with the values of each record separated by ", ".
+	 */
+	public void run(String datafile, List<String> quasiIdentifiers, int k, String resultFile) throws IOException, InterruptedException {
+		List<Attribute> attributes;
+		RecordReader header = new RecordReader(datafile);
+		try {
+			attributes = header.getAttributes();
+		} finally {
+			header.close();
+		}
+
+		int[] qi = new int[quasiIdentifiers.size()];
+		for (int i = 0; i < qi.length; i++) {
+			qi[i] = indexOf(attributes, quasiIdentifiers.get(i));
+			attributes.get(qi[i]).setConfidentiality("quasi_identifier");
+		}
+		if (qi.length == 0)
+			throw new IllegalArgumentException("DistributedMicroaggregation: the dataset has no quasi-identifiers");
+
+		String[] names = new String[attributes.size()];
+		StringBuilder roles = new StringBuilder();
+		for (Attribute a : attributes) {
+			names[a.getNum()] = a.getName();
+			if (roles.length() > 0) roles.append(',');
+			roles.append(a.getConfidentiality());
+		}
+
+		RandomStream rnd = RandomStream.next("DistributedMicroaggregation");
+		Scan scan = new Scan(datafile, names.length, qi, rnd.split(0), rnd.split(1));
+
+		//place the shard boundaries on the sample and assign the records to the shards
+		Node root = split(scan.sample, qi.length, scan.sampleIds(), 0, scan.sampleCount, workers,
+				(double)scan.numRecords / Math.max(scan.sampleCount, 1), k, scan.sampleVariances());
+		int[] shardOf = new int[scan.numRecords];
+		Statistics statistics = scan.assign(root, shardOf);
+		int[] counts = mergeSmallShards(shardOf, root.numLeaves(), k);
+		numShards = counts.length;
+
+		File dir = Files.createTempDirectory("privtool").toFile();
+		List<Process> processes = new ArrayList<Process>();
+		try {
+			scan.writeShards(dir, names, statistics, shardOf, counts);
+
+			//launch a worker for each shard
+			for (int s = 0; s < numShards; s++) {
+				List<String> command = new ArrayList<String>();
+				command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+				if (workerHeap != null) command.add("-Xmx" + workerHeap);
+				command.add("-cp");
+				command.add(System.getProperty("java.class.path"));
+				command.add(DistributedMicroaggregation.class.getName());
+				command.add(shardFile(dir, s).getPath());
+				command.add(resultFile(dir, s).getPath());
+				command.add(groupsFile(dir, s).getPath());
+				command.add(method);
+				command.add(String.valueOf(k));
+				command.add(roles.toString());
+				command.add(String.valueOf(rnd.split(2).split(s).nextLong()));
+				command.add(String.valueOf(projection));
+				command.add(String.valueOf(workerThreads));
+
+				processes.add(new ProcessBuilder(command).inheritIO().start());
+			}
+
+			for (int s = 0; s < processes.size(); s++) {
+				int code = processes.get(s).waitFor();
+				if (code != 0)
+					throw new IOException("DistributedMicroaggregation: worker " + s + " failed with exit code " + code);
+			}
+
+			//translate the groups of each shard to the positions of the records
+			int[][] shardIds = new int[numShards][];
+			for (int s = 0; s < numShards; s++) shardIds[s] = new int[counts[s]];
+			int[] filled = new int[numShards];
+			for (int i = 0; i < shardOf.length; i++) shardIds[shardOf[i]][filled[shardOf[i]]++] = i;
+
+			groups = new ArrayList<List<Integer>>();
+			for (int s = 0; s < numShards; s++) {
+				for (List<Integer> group : readGroups(groupsFile(dir, s))) {
+					List<Integer> mapped = new ArrayList<Integer>(group.size());
+					for (int i : group) mapped.add(shardIds[s][i]);
+					groups.add(mapped);
+				}
+				shardIds[s] = null;
+			}
+
+			mergeResults(dir, shardOf, counts, names.length, resultFile);
+		} finally {
+			stop(processes);
+			File[] files = dir.listFiles();
+			if (files != null) {
+				for (File f : files) f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	/**
+	 * Writes the results of the workers into the output file, in the original
+	 * order of the records. The results are read record by record.
+	 */
+	private static void mergeResults(File dir, int[] shardOf, int[] counts, int numAtts, String resultFile) throws IOException {
+		DatasetCache.Reader[] readers = new DatasetCache.Reader[counts.length];
+		RecordWriter writer = null;
+		try {
+			for (int s = 0; s < counts.length; s++) {
+				readers[s] = new DatasetCache(resultFile(dir, s)).openReader();
+				if (readers[s].numRecords() != counts[s] || readers[s].numAttributes() != numAtts)
+					throw new IOException("DistributedMicroaggregation: invalid result of worker " + s);
+			}
+
+			writer = new RecordWriter(resultFile, ", ", false, false);
+			double[] row = new double[numAtts];
+			Record rec = new Record(row);
+			for (int i = 0; i < shardOf.length; i++) {
+				if (!readers[shardOf[i]].next(row))
+					throw new IOException("DistributedMicroaggregation: invalid result of worker " + shardOf[i]);
+				writer.write(rec);
+			}
+		} finally {
+			if (writer != null) writer.close();
+			for (DatasetCache.Reader reader : readers) {
+				if (reader != null) reader.close();
+			}
+		}
+	}
+
+	/**
+	 * Stops the workers still running and waits for them to exit, so their
+	 * files can be deleted.
+	 */
+	private static void stop(List<Process> processes) {
+		boolean interrupted = false;
+		for (Process p : processes) {
+			try {
+				p.exitValue();
+				continue;
+			} catch (IllegalThreadStateException e) {
+				//still running
+			}
+			p.destroy();
+			while (true) {
+				try {
+					p.waitFor();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	private static int indexOf(List<Attribute> attributes, String name) {
+		for (Attribute a : attributes) {
+			if (a.getName().equalsIgnoreCase(name.trim())) return a.getNum();
+		}
+		throw new IllegalArgumentException("DistributedMicroaggregation: unknown attribute " + name);
+	}
+
+	/**
+	 * Passes over the records of the input file.
+	 */
+	private static class Scan {
+		private String datafile;
+		private int numAtts;
+		private int[] qi;
+		private RandomStream imputation;
+
+		private int numRecords;
+		private double[] min, max;
+		private double[] sample;	//values of the quasi-identifiers of the sampled records, one after the other
+		private int sampleCount;
+
+		/**
+		 * Reads the file once, to count the records, find the range of the
+		 * attributes and take a uniform sample of the records.
+		 */
+		Scan(String datafile, int numAtts, int[] qi, RandomStream sampling, RandomStream imputation) throws IOException {
+			this.datafile = datafile;
+			this.numAtts = numAtts;
+			this.qi = qi;
+			this.imputation = imputation;
+
+			min = new double[numAtts];
+			max = new double[numAtts];
+			Arrays.fill(min, Double.POSITIVE_INFINITY);
+			Arrays.fill(max, Double.NEGATIVE_INFINITY);
+
+			//the sampled records are kept whole until the range is known to impute them
+			double[][] rows = new double[SAMPLE_SIZE][];
+			int[] ids = new int[SAMPLE_SIZE];
+			double[] row = new double[numAtts];
+			long n = 0;
+
+			RecordReader reader = new RecordReader(datafile);
+			try {
+				while (reader.next(row)) {
+					for (int a = 0; a < numAtts; a++) {
+						if (row[a] < min[a]) min[a] = row[a];
+						if (row[a] > max[a]) max[a] = row[a];
+					}
+
+					int slot = (n < SAMPLE_SIZE) ? (int)n : sampling.nextInt((int)n + 1);
+					if (slot < SAMPLE_SIZE) {
+						rows[slot] = row.clone();
+						ids[slot] = (int)n;
+					}
+					if (++n == Integer.MAX_VALUE)
+						throw new IOException("DistributedMicroaggregation: " + datafile + " has too many records");
+				}
+			} finally {
+				reader.close();
+			}
+			if (n == 0) throw new IOException("DistributedMicroaggregation: " + datafile + " has no records");
+
+			numRecords = (int)n;
+			sampleCount = (int)Math.min(n, SAMPLE_SIZE);
+			sample = new double[sampleCount * qi.length];
+			for (int i = 0; i < sampleCount; i++) {
+				impute(rows[i], ids[i]);
+				for (int d = 0; d < qi.length; d++) sample[i * qi.length + d] = rows[i][qi[d]];
+			}
+		}
+
+		int[] sampleIds() {
+			int[] ids = new int[sampleCount];
+			for (int i = 0; i < sampleCount; i++) ids[i] = i;
+			return ids;
+		}
+
+		double[] sampleVariances() {
+			int q = qi.length;
+			double[] mean = new double[q], m2 = new double[q];
+			for (int i = 0; i < sampleCount; i++) {
+				for (int d = 0; d < q; d++) {
+					double x = sample[i * q + d];
+					double delta = x - mean[d];
+					mean[d] += delta / (i + 1);
+					m2[d] += delta * (x - mean[d]);
+				}
+			}
+			for (int d = 0; d < q; d++) m2[d] /= sampleCount;
+			return m2;
+		}
+
+		/**
+		 * Imputes the missing values of a record with random values in the
+		 * range of their attribute, from a stream of the record.
+		 */
+		void impute(double[] row, int record) {
+			RandomStream r = null;
+			for (int a = 0; a < numAtts; a++) {
+				if (Double.isNaN(row[a])) {
+					if (r == null) r = imputation.split(record);
+					row[a] = r.nextDouble() * (max[a] - min[a]) + min[a];
+				}
+			}
+		}
+
+		/**
+		 * Reads the file again to assign each record to a leaf of the tree.
+		 * @param root the split tree.
+		 * @param shardOf the leaf of each record.
+		 * @return the statistics of the records.
+		 */
+		Statistics assign(Node root, int[] shardOf) throws IOException {
+			double[] mean = new double[numAtts], m2 = new double[numAtts];
+			double[] row = new double[numAtts];
+			int n = 0;
+
+			RecordReader reader = new RecordReader(datafile);
+			try {
+				while (n < numRecords && reader.next(row)) {
+					impute(row, n);
+					shardOf[n] = root.leafOf(row, qi);
+					n++;
+					for (int a = 0; a < numAtts; a++) {
+						double delta = row[a] - mean[a];
+						mean[a] += delta / n;
+						m2[a] += delta * (row[a] - mean[a]);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+			if (n != numRecords) throw new IOException("DistributedMicroaggregation: " + datafile + " changed while it was read");
+
+			for (int a = 0; a < numAtts; a++) m2[a] /= n;
+			return new Statistics(n, mean, m2, min.clone(), max.clone());
+		}
+
+		/**
+		 * Reads the file a last time and writes each record to its shard file.
+		 */
+		void writeShards(File dir, String[] names, Statistics statistics, int[] shardOf, int[] counts) throws IOException {
+			DatasetCache.Writer[] writers = new DatasetCache.Writer[counts.length];
+			RecordReader reader = new RecordReader(datafile);
+			try {
+				for (int s = 0; s < counts.length; s++) {
+					writers[s] = new DatasetCache(shardFile(dir, s)).openWriter(names, counts[s], statistics);
+				}
+
+				double[] row = new double[numAtts];
+				int n = 0;
+				while (n < numRecords && reader.next(row)) {
+					impute(row, n);
+					writers[shardOf[n]].write(row);
+					n++;
+				}
+
+				for (DatasetCache.Writer writer : writers) writer.finish();
+			} finally {
+				reader.close();
+				for (DatasetCache.Writer writer : writers) {
+					if (writer != null) writer.close();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Node of the tree of median splits of the sample. The records below the
+	 * threshold of a node go to its left subtree, and the others to its right one.
+	 */
+	private static class Node {
+		private int att = -1;	//index in the quasi-identifiers, -1 in the leaves
+		private double threshold;
+		private Node left, right;
+		private int leaf;
+
+		int leafOf(double[] row, int[] qi) {
+			Node node = this;
+			while (node.att >= 0) node = (row[qi[node.att]] < node.threshold) ? node.left : node.right;
+			return node.leaf;
+		}
+
+		int numLeaves() {
+			return (att < 0) ? 1 : left.numLeaves() + right.numLeaves();
+		}
+	}
+
+	/**
+	 * Splits the sampled records ids[lo..hi] into at most numShards leaves, by
+	 * recursive median splits on the attribute with the largest variance
+	 * relative to the sample, as Microaggregation.shard() does with the records.
+	 * @param scale the number of records represented by each sampled record.
+	 */
+	private static Node split(double[] sample, int q, int[] ids, int lo, int hi, int numShards, double scale, int k, double[] variance) {
+		Node node = splitNode(sample, q, ids, lo, hi, numShards, scale, k, variance);
+		numberLeaves(node, new int[1]);
+		return node;
+	}
+
+	private static Node splitNode(double[] sample, int q, int[] ids, int lo, int hi, int numShards, double scale, int k, double[] variance) {
+		Node node = new Node();
+		int size = hi - lo;
+		if (numShards <= 1 || size < 2 || size * scale < 6*k) return node;
+
+		//attribute with the largest variance in the range, relative to the sample
+		double[] mean = new double[q], m2 = new double[q];
+		for (int i = lo; i < hi; i++) {
+			int c = i - lo + 1;
+			for (int d = 0; d < q; d++) {
+				double x = sample[ids[i] * q + d];
+				double delta = x - mean[d];
+				mean[d] += delta / c;
+				m2[d] += delta * (x - mean[d]);
+			}
+		}
+		int att = 0;
+		double best = -1;
+		for (int d = 0; d < q; d++) {
+			double v = (variance[d] > 0) ? m2[d] / variance[d] : 0;
+			if (v > best) {
+				best = v;
+				att = d;
+			}
+		}
+
+		double[] values = new double[size];
+		for (int i = lo; i < hi; i++) values[i - lo] = sample[ids[i] * q + att];
+		int[] order = Utilities.argsort(values);
+		int[] sorted = new int[size];
+		for (int i = 0; i < size; i++) sorted[i] = ids[lo + order[i]];
+		System.arraycopy(sorted, 0, ids, lo, size);
+
+		//shards on each side in proportion to their records, the ties on the right
+		int leftShards = numShards / 2;
+		int minSize = Math.max(1, (int)Math.ceil(3*k / scale));
+		int mid = lo + (int)((long)size * leftShards / numShards);
+		mid = Math.min(hi - 1, Math.max(lo + minSize, Math.min(hi - minSize, mid)));
+		double threshold = sample[ids[mid] * q + att];
+		while (mid > lo && sample[ids[mid-1] * q + att] == threshold) mid--;
+		if (mid == lo) return node;
+
+		node.att = att;
+		node.threshold = threshold;
+		node.left = splitNode(sample, q, ids, lo, mid, leftShards, scale, k, variance);
+		node.right = splitNode(sample, q, ids, mid, hi, numShards - leftShards, scale, k, variance);
+		return node;
+	}
+
+	private static void numberLeaves(Node node, int[] next) {
+		if (node.att < 0) {
+			node.leaf = next[0]++;
+			return;
+		}
+		numberLeaves(node.left, next);
+		numberLeaves(node.right, next);
+	}
+
+	/**
+	 * Joins each leaf with less than 3k records to a neighbour leaf, which is
+	 * next to it in the order of the splits, and numbers the shards left.
+	 * @param shardOf the leaf of each record, replaced by its shard.
+	 * @param numLeaves the number of leaves.
+	 * @return the number of records of each shard.
+	 */
+	private static int[] mergeSmallShards(int[] shardOf, int numLeaves, int k) {
+		int[] counts = new int[numLeaves];
+		for (int s : shardOf) counts[s]++;
+
+		//runs of consecutive leaves, as {first leaf, number of records}
+		List<int[]> runs = new ArrayList<int[]>();
+		for (int l = 0; l < numLeaves; l++) runs.add(new int[] {l, counts[l]});
+		int r = 0;
+		while (r < runs.size() && runs.size() > 1) {
+			if (runs.get(r)[1] >= 3*k) {
+				r++;
+			} else if (r + 1 < runs.size()) {
+				runs.get(r)[1] += runs.remove(r + 1)[1];
+			} else {
+				runs.get(r - 1)[1] += runs.remove(r)[1];
+				r--;
+			}
+		}
+
+		int[] shardOfLeaf = new int[numLeaves];
+		for (int s = 0; s < runs.size(); s++) {
+			int end = (s + 1 < runs.size()) ? runs.get(s + 1)[0] : numLeaves;
+			for (int l = runs.get(s)[0]; l < end; l++) shardOfLeaf[l] = s;
+		}
+		for (int i = 0; i < shardOf.length; i++) shardOf[i] = shardOfLeaf[shardOf[i]];
+
+		int[] shardCounts = new int[runs.size()];
+		for (int s : shardOf) shardCounts[s]++;
+		return shardCounts;
+	}
+
+	private static File shardFile(File dir, int shard) {
+		return new File(dir, "shard" + shard + ".bin");
+	}
+
+	private static File resultFile(File dir, int shard) {
+		return new File(dir, "result" + shard + ".bin");
+	}
+
+	private static File groupsFile(File dir, int shard) {
+		return new File(dir, "groups" + shard + ".bin");
+	}
+
+	private static void writeGroups(Partition p, File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(p.numGroups());
+			for (List<Integer> group : p.getGroups()) {
+				out.writeInt(group.size());
+				for (int i : group) out.writeInt(i);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static List<List<Integer>> readGroups(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			int numGroups = in.readInt();
+			List<List<Integer>> groups = new ArrayList<List<Integer>>(numGroups);
+			for (int g = 0; g < numGroups; g++) {
+				int size = in.readInt();
+				List<Integer> group = new ArrayList<Integer>(size);
+				for (int i = 0; i < size; i++) group.add(in.readInt());
+				groups.add(group);
+			}
+			return groups;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Entry point of the worker processes.
+	 * @param args shard file, result file, groups file, method, k, the
+	 * comma-separated confidentiality of the attributes, the random seed,
+	 * whether the shard is grouped by projections and the number of threads.
+	 */
+	public static void main(String[] args) {
+		try {
+			Dataset shard = new Dataset();
+			if (!new DatasetCache(new File(args[0])).read(shard))
+				throw new IOException("DistributedMicroaggregation: cannot read " + args[0]);
+
+			String[] roles = args[5].split(",");
+			for (int i = 0; i < roles.length; i++) {
+				shard.getAttribute(i).setConfidentiality(roles[i]);
+			}
+			int k = Integer.parseInt(args[4]);
+			RandomStream.setGlobalSeed(Long.parseLong(args[6]));
+			boolean projection = Boolean.parseBoolean(args[7]);
+			Microaggregation.setPool(new ForkJoinPool(Integer.parseInt(args[8])));
+
+			//the shard file holds the statistics of the whole dataset
+			Statistics statistics = shard.getStatistics();
+			Dataset qiShard = shard.getQIDataset();
+			for (Attribute a : qiShard.getAttributeList()) qiShard.addTotalVariance(statistics.getVariance(a.getNum()));
+
+			Partition p = Microaggregation.kPartition(qiShard, k, projection, 1);
+			Dataset result = MDAV_SWAP.equals(args[3]) ? Microaggregation.MDAV_SWAP(shard, p) : Microaggregation.MDAV_ID(shard, p);
+
+			new DatasetCache(new File(args[1])).write(result);
+			writeGroups(p, new File(args[2]));
+		} catch (Exception e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
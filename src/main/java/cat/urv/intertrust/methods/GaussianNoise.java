@@ -1,34 +1,95 @@
 package cat.urv.intertrust.methods;
 
-import java.util.Random;
-
 import cat.urv.intertrust.data.Dataset;
-import cat.urv.intertrust.data.Record;
+import cat.urv.intertrust.data.RandomStream;
+import cat.urv.intertrust.data.RecordBlock;
 
+/**
+ * Additive Gaussian noise. Each value of the dataset gets its own noise value,
+ * drawn from a normal distribution that can be the same for all the
+ * attributes, scaled to the variance of each attribute or correlated as the
+ * attributes of the dataset. The perturbed values are written into a block
+ * of primitive values allocated once, and the noise is drawn in parallel
+ * chunks of records by a MultivariateNormalSampler, with seeded streams.
+ */
 public class GaussianNoise {
-	
+
 	/**
 	 * @param dataset: The Dataset to be perturbed.
 	 * @param mean: Mean of the Gaussian distribution.
 	 * @param variance: Variance of the Gaussian distribution.
-	 * @return A perturbed Dataset with a custom Gaussian noise.
+	 * @return A perturbed Dataset with a custom Gaussian noise, drawn independently for each value.
 	 */
 	public static Dataset addGaussianNoise (Dataset dataset, double mean, double variance) {
-		Random rand = new Random();
-		double noise = rand.nextGaussian() * Math.sqrt(variance) + mean;
-		Dataset output = new Dataset();
-		
-		for (Record r : dataset.toList()) {
-			Record outR = new Record(dataset.numAttributes());
-			
-			for (int d = 0; d < dataset.numAttributes(); d++) {
-				double value = Double.valueOf(r.getAttribute(d).toString()) + noise;
-				outR.setAttribute(d, value);
-			}
-			
-			output.addRecord(outR);
+		int m = numAttributes(dataset);
+		double[] means = new double[m];
+		double[][] covariance = new double[m][m];
+		for (int d = 0; d < m; d++) {
+			means[d] = mean;
+			covariance[d][d] = variance;
 		}
-		
-		return output;
+
+		return addNoise(dataset, means, covariance);
+	}
+
+	/**
+	 * Adds to each value a zero-mean noise with a variance proportional to
+	 * the variance of its attribute.
+	 * @param dataset the dataset to be perturbed.
+	 * @param alpha the ratio between the variance of the noise and the variance of the attribute.
+	 * @return a perturbed dataset.
+	 */
+	public static Dataset addScaledNoise (Dataset dataset, double alpha) {
+		int m = numAttributes(dataset);
+		double[][] covariance = new double[m][m];
+		for (int d = 0; d < m; d++) {
+			covariance[d][d] = alpha * dataset.getVarianceAttribute(d);
+		}
+
+		return addNoise(dataset, new double[m], covariance);
+	}
+
+	/**
+	 * Adds to each record a zero-mean noise with a covariance matrix
+	 * proportional to the covariance matrix of the dataset, so the
+	 * correlations between the attributes are kept.
+	 * @param dataset the dataset to be perturbed.
+	 * @param alpha the ratio between the covariance of the noise and the covariance of the dataset.
+	 * @return a perturbed dataset.
+	 */
+	public static Dataset addCorrelatedNoise (Dataset dataset, double alpha) {
+		int m = numAttributes(dataset);
+		double[][] covariance = dataset.getStatistics(true).getCovarianceMatrix();
+		for (int i = 0; i < m; i++) {
+			for (int j = 0; j < m; j++) covariance[i][j] *= alpha;
+		}
+
+		return addNoise(dataset, new double[m], covariance);
+	}
+
+	/**
+	 * Adds to each record a normal noise vector.
+	 * @param dataset the dataset to be perturbed.
+	 * @param means the mean of the noise of each attribute.
+	 * @param covariance the covariance matrix of the noise.
+	 * @return a perturbed dataset.
+	 */
+	public static Dataset addNoise (Dataset dataset, double[] means, double[][] covariance) {
+		int n = dataset.numRecords(), m = means.length;
+
+		//the perturbed values, one record after the other
+		double[] values = new double[n * m];
+		for (int i = 0, pos = 0; i < n; i++, pos += m) {
+			dataset.getRecord(i).copyValues(values, pos);
+			for (int d = 0; d < m; d++) values[pos + d] += means[d];
+		}
+
+		new MultivariateNormalSampler(covariance).addSamples(values, n, RandomStream.next("GaussianNoise"));
+
+		return new Dataset(new RecordBlock(values, m, n), dataset.getAttributeList());
+	}
+
+	private static int numAttributes(Dataset dataset) {
+		return (dataset.numRecords() == 0) ? dataset.getAttributeList().size() : dataset.numAttributes();
 	}
 }
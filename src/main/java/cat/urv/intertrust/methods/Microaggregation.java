@@ -1,8 +1,13 @@
 package cat.urv.intertrust.methods;
 import java.io.File;
+import java.io.IOException;
 import java.text.*;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 
 import cat.urv.intertrust.data.*;
 import cat.urv.intertrust.data.Error;
@@ -11,6 +16,7 @@ public class Microaggregation {
 	private static boolean DEBUG = false;
 	static DecimalFormat dFormat = new DecimalFormat("####.###");
 	private static boolean binary;
+	private static ForkJoinPool pool;
 	
 	 /**
      * Returns the index of the two records in the dataset at greatest SSE-distance.
@@ -45,91 +51,407 @@ public class Microaggregation {
      * @param record the index of the record in the dataset.
      * @param num the number of nearest records to be found.
      * @param dataset The dataset.
-     * @param matrixDistance the matrix distance
+     * @param unassigned the records not assigned to a group yet.
+     * @param index spatial index over the unassigned records.
      * @return the index of the num nearest records around the record given.
      */
-	private static List<Integer> getNearestRecords(int record, int num, Dataset dataset, Map<Integer, Record> unassignedNodes) {
+	private static List<Integer> getNearestRecords(int record, int num, Dataset dataset, ActiveRecords unassigned, KDTree index) {
 		if (num >= dataset.numRecords()-1) {
 			new Error("Too many records in getNearestRecords");			
 		}
 		
-		List<Integer> list = new ArrayList<Integer>();
-		List<Integer> nearestRec = new ArrayList<Integer>();
+		List<Integer> nearestRec = index.nearest(dataset.getRecord(record), num, record);
+
+		for (int i : nearestRec) {
+			unassigned.remove(i);
+			index.remove(i);
+		}
+		return nearestRec;
+	}
+	
+	/**
+	 * Computes the optimal k-partition of a dataset with a single attribute
+	 * (Hansen-Mukherjee). In one dimension the groups of an optimal partition
+	 * are runs of consecutive sorted values with k to 2k-1 records, so the
+	 * partition with the lowest within-group sum of squares is a shortest path
+	 * over the sorted values, found in O(n log n + nk).
+	 * @param dataset the dataset, with a single attribute.
+	 * @param k the minimum size of the groups.
+	 * @return the k-partition.
+	 */
+	public static Partition univariateMicroaggregation(Dataset dataset, int k) {
+		Partition p = new Partition(dataset, k);
+		int n = dataset.numRecords();
+		
+		double[] values = dataset.getAttributeDoubleValues(0);
+		int[] order = Utilities.argsort(values);
+		
+		if (n < 2*k) {
+			List<Integer> group = new ArrayList<Integer>();
+			for (int i : order) group.add(i);
+			if (n > 0) p.addGroup(group);
+			return p;
+		}
+		
+		//prefix sums of the centered sorted values
+		double mean = 0;
+		for (double v : values) mean += v;
+		mean /= n;
+		double[] sum = new double[n+1], sumSq = new double[n+1];
+		for (int i = 0; i < n; i++) {
+			double x = values[order[i]] - mean;
+			sum[i+1] = sum[i] + x;
+			sumSq[i+1] = sumSq[i] + x * x;
+		}
 		
-		Map<Integer, Double> nodeDistances = new HashMap <Integer, Double>();
+		//cost[i]: lowest sum of squares grouping the first i sorted values
+		double[] cost = new double[n+1];
+		int[] from = new int[n+1];
+		Arrays.fill(cost, Double.POSITIVE_INFINITY);
+		cost[0] = 0;
+		for (int i = k; i <= n; i++) {
+			for (int size = k; size <= Math.min(2*k-1, i); size++) {
+				int j = i - size;
+				if (cost[j] == Double.POSITIVE_INFINITY) continue;
+				double s = sum[i] - sum[j];
+				double sse = Math.max(0, (sumSq[i] - sumSq[j]) - s * s / size);
+				if (cost[j] + sse < cost[i]) {
+					cost[i] = cost[j] + sse;
+					from[i] = j;
+				}
+			}
+		}
 		
-		for (int i=0; i<dataset.numRecords(); i++) {
-			if ((i!= record)&&(unassignedNodes.containsKey(i))) {
-				nodeDistances.put(i, Distances.SSE_distance(dataset.getRecord(record), dataset.getRecord(i), dataset));
+		List<List<Integer>> groups = new ArrayList<List<Integer>>();
+		for (int i = n; i > 0; i = from[i]) {
+			List<Integer> group = new ArrayList<Integer>();
+			for (int j = from[i]; j < i; j++) group.add(order[j]);
+			groups.add(group);
+		}
+		for (int g = groups.size()-1; g >= 0; g--) p.addGroup(groups.get(g));
+		return p;
+	}
+	
+	/**
+	 * Computes a k-partition of a dataset by recursive projections. The records
+	 * are standardized and projected onto the first principal component of the
+	 * set, which is split along that projection into two sets with a multiple
+	 * of k records. The sets are split again until they have between k and 2k-1
+	 * records, which become the groups. It runs in O(n log n), so it is meant
+	 * for fast exploratory runs on large datasets, at the cost of some more
+	 * information loss than MDAV.
+	 * @param dataset the dataset.
+	 * @param k the minimum size of the groups.
+	 * @return the k-partition.
+	 */
+	public static Partition projectionMicroaggregation(Dataset dataset, int k) {
+		Partition p = new Partition(dataset, k);
+		int m = dataset.numAttributes(), n = dataset.numRecords();
+		if (n == 0) return p;
+		
+		//z-scores of the records, zero for the attributes with no variance
+		double[] z = new double[n * m];
+		for (int d = 0; d < m; d++) {
+			double mean = dataset.getMeanAttribute(d);
+			double sd = Math.sqrt(dataset.getVarianceAttribute(d));
+			if (!(sd > 0)) continue;
+			for (int r = 0; r < n; r++) {
+				z[r * m + d] = (dataset.getRecord(r).getValue(d) - mean) / sd;
 			}
 		}
 		
-		Map<Integer, Double> sortedDistances = Utilities.sortByAscendingValues(nodeDistances);
+		int[] ids = new int[n];
+		for (int i = 0; i < n; i++) ids[i] = i;
+		
+		List<List<Integer>> groups = new ArrayList<List<Integer>>();
+		splitByProjection(z, m, ids, new double[n], 0, n, k, groups);
+		for (List<Integer> group : groups) p.addGroup(group);
+		return p;
+	}
+	
+	private static void splitByProjection(double[] z, int m, int[] ids, double[] proj, int lo, int hi, int k, List<List<Integer>> groups) {
+		int size = hi - lo;
+		if (size < 2*k) {
+			int[] group = Arrays.copyOfRange(ids, lo, hi);
+			Arrays.sort(group);
+			List<Integer> list = new ArrayList<Integer>(size);
+			for (int i : group) list.add(i);
+			groups.add(list);
+			return;
+		}
+		
+		double[] axis = principalAxis(z, m, ids, lo, hi);
+		for (int i = lo; i < hi; i++) {
+			int base = ids[i] * m;
+			double v = 0;
+			for (int d = 0; d < m; d++) v += axis[d] * z[base + d];
+			proj[i] = v;
+		}
+		
+		int mid = lo + k * ((size / k) / 2);
+		selectByProjection(proj, ids, lo, hi - 1, mid);
+		splitByProjection(z, m, ids, proj, lo, mid, k, groups);
+		splitByProjection(z, m, ids, proj, mid, hi, k, groups);
+	}
+	
+	/**
+	 * First principal component of a set of standardized records, by power
+	 * iteration from the direction of the sum of z-scores.
+	 */
+	private static double[] principalAxis(double[] z, int m, int[] ids, int lo, int hi) {
+		int size = hi - lo;
+		double[] mean = new double[m];
+		for (int i = lo; i < hi; i++) {
+			for (int d = 0; d < m; d++) mean[d] += z[ids[i] * m + d];
+		}
+		for (int d = 0; d < m; d++) mean[d] /= size;
+		
+		double[][] cov = new double[m][m];
+		double[] x = new double[m];
+		for (int i = lo; i < hi; i++) {
+			for (int d = 0; d < m; d++) x[d] = z[ids[i] * m + d] - mean[d];
+			for (int a = 0; a < m; a++) {
+				for (int b = 0; b <= a; b++) cov[a][b] += x[a] * x[b];
+			}
+		}
+		for (int a = 0; a < m; a++) {
+			for (int b = 0; b < a; b++) cov[b][a] = cov[a][b];
+		}
 		
-		int n=0;
-		for (Entry<Integer, Double> e : sortedDistances.entrySet()){
-			list.add(e.getKey());
-			n++;
+		double[] axis = new double[m];
+		Arrays.fill(axis, 1 / Math.sqrt(m));
+		for (int it = 0; it < 50; it++) {
+			double[] next = new double[m];
+			double norm = 0;
+			for (int a = 0; a < m; a++) {
+				for (int b = 0; b < m; b++) next[a] += cov[a][b] * axis[b];
+				norm += next[a] * next[a];
+			}
+			norm = Math.sqrt(norm);
+			if (!(norm > 0)) break;
 			
-			if (n == num) break;
+			double change = 0;
+			for (int d = 0; d < m; d++) {
+				next[d] /= norm;
+				change = Math.max(change, Math.abs(next[d] - axis[d]));
+			}
+			axis = next;
+			if (change < 1e-6) break;
 		}
-
-		for (int i : list) {
-			if (unassignedNodes.containsKey(i)) {
-				nearestRec.add(i);
-				unassignedNodes.remove(i);
+		return axis;
+	}
+	
+	/**
+	 * Reorders ids[lo..hi] so the element at position k is the one that would
+	 * be there if the range was sorted by its projection.
+	 */
+	private static void selectByProjection(double[] proj, int[] ids, int lo, int hi, int k) {
+		while (hi > lo) {
+			double pivot = proj[(lo + hi) >>> 1];
+			int i = lo, j = hi;
+			while (i <= j) {
+				while (proj[i] < pivot) i++;
+				while (proj[j] > pivot) j--;
+				if (i <= j) {
+					double tv = proj[i]; proj[i] = proj[j]; proj[j] = tv;
+					int t = ids[i]; ids[i] = ids[j]; ids[j] = t;
+					i++;
+					j--;
+				}
 			}
+			if (k <= j) hi = j;
+			else if (k >= i) lo = i;
+			else return;
 		}
-		return nearestRec;
 	}
 	
-	public static Partition MDAV(Dataset dataset, int k) {
+	/**
+	 * Computes the k-partition used by the microaggregation methods: the MDAV
+	 * one, the one of parallelMDAV on the pool of getPool() or the one of
+	 * projectionMicroaggregation.
+	 * @param dataset the dataset.
+	 * @param k the microaggregation parameter.
+	 * @param projection TRUE to group the records with projectionMicroaggregation.
+	 * @param shards the number of shards of parallelMDAV, 1 to run a single MDAV.
+	 * @return the k-partition.
+	 */
+	public static Partition kPartition(Dataset dataset, int k, boolean projection, int shards) {
+		if (projection) return projectionMicroaggregation(dataset, k);
+		if (shards > 1) return parallelMDAV(dataset, k, shards, getPool());
+		return MDAV(dataset, k);
+	}
+	
+	/**
+	 * Executes MDAV in parallel. The dataset is split into spatially coherent
+	 * shards by recursive median splits on the attribute with the largest
+	 * standardized variance, each shard with at least 3k records, and MDAV is
+	 * executed on the shards concurrently. Distances are standardized by the
+	 * variances of the whole dataset, as in a single MDAV run.
+	 * @param dataset the dataset.
+	 * @param k the microaggregation parameter.
+	 * @param numShards the maximum number of shards.
+	 * @param pool the pool running the shards.
+	 * @return the k-partition joining the groups of all the shards.
+	 */
+	public static Partition parallelMDAV(Dataset dataset, final int k, int numShards, ForkJoinPool pool) {
+		int m = dataset.numAttributes();
+		
+		double[] variance = new double[m];
+		int[] attributes = new int[m];
+		for (int d = 0; d < m; d++) {
+			variance[d] = dataset.getVarianceAttribute(d);
+			attributes[d] = d;
+		}
+		List<int[]> shardIds = shard(dataset, attributes, numShards, k);
+		
+		List<Callable<Partition>> tasks = new ArrayList<Callable<Partition>>();
+		for (final int[] shard : shardIds) {
+			List<Record> records = new ArrayList<Record>(shard.length);
+			for (int i : shard) records.add(dataset.getRecord(i));
+			final Dataset shardDataset = new Dataset(records, dataset.getAttributeList());
+			for (int d = 0; d < m; d++) shardDataset.addTotalVariance(variance[d]);
+			
+			tasks.add(new Callable<Partition>() {
+				public Partition call() {
+					return MDAV(shardDataset, k);
+				}
+			});
+		}
+		
+		System.out.println("Parallel MDAV on " + shardIds.size() + " shards.");
+		List<Future<Partition>> results = pool.invokeAll(tasks);
+		
+		//translate the groups of each shard to the indexes of the dataset
 		Partition p = new Partition(dataset, k);
+		for (int s = 0; s < shardIds.size(); s++) {
+			int[] shard = shardIds.get(s);
+			Partition shardPartition;
+			try {
+				shardPartition = results.get(s).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Microaggregation: parallel MDAV interrupted", e);
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("Microaggregation: parallel MDAV failed", e.getCause());
+			}
+			
+			for (List<Integer> group : shardPartition.getGroups()) {
+				List<Integer> mapped = new ArrayList<Integer>(group.size());
+				for (int i : group) mapped.add(shard[i]);
+				p.addGroup(mapped);
+			}
+		}
+		return p;
+	}
+	
+	/**
+	 * Splits the records of a dataset into spatially coherent shards, by
+	 * recursive median splits on the attribute with the largest variance
+	 * relative to its variance in the dataset.
+	 * @param dataset the dataset.
+	 * @param attributes the attributes considered to split the records.
+	 * @param numShards the maximum number of shards.
+	 * @param k the microaggregation parameter; every shard has at least 3k records.
+	 * @return the indexes of the records of each shard.
+	 */
+	static List<int[]> shard(Dataset dataset, int[] attributes, int numShards, int k) {
+		int n = dataset.numRecords();
+		double[] variance = new double[attributes.length];
+		for (int d = 0; d < attributes.length; d++) variance[d] = dataset.getVarianceAttribute(attributes[d]);
+		
+		int[] ids = new int[n];
+		for (int i = 0; i < n; i++) ids[i] = i;
+		List<int[]> shardIds = new ArrayList<int[]>();
+		split(dataset, attributes, variance, ids, 0, n, Math.max(numShards, 1), k, shardIds);
+		return shardIds;
+	}
+	
+	/**
+	 * Splits ids[lo..hi] into at most numShards shards of at least 3k records.
+	 */
+	private static void split(Dataset dataset, int[] attributes, double[] variance, int[] ids, int lo, int hi, int numShards, int k, List<int[]> shardIds) {
+		int size = hi - lo;
+		if (numShards <= 1 || size < 6*k) {
+			shardIds.add(Arrays.copyOfRange(ids, lo, hi));
+			return;
+		}
+		
+		//attribute with the largest variance in the range, relative to the dataset
+		int m = attributes.length;
+		double[] mean = new double[m], m2 = new double[m];
+		for (int i = lo; i < hi; i++) {
+			Record r = dataset.getRecord(ids[i]);
+			int c = i - lo + 1;
+			for (int d = 0; d < m; d++) {
+				double x = r.getValue(attributes[d]);
+				double delta = x - mean[d];
+				mean[d] += delta / c;
+				m2[d] += delta * (x - mean[d]);
+			}
+		}
+		int att = 0;
+		double best = -1;
+		for (int d = 0; d < m; d++) {
+			double v = (variance[d] > 0) ? m2[d] / variance[d] : 0;
+			if (v > best) {
+				best = v;
+				att = attributes[d];
+			}
+		}
 		
-		Dataset dst = new Dataset(dataset);
+		//shards on each side in proportion to their records
+		int leftShards = numShards / 2;
+		int mid = lo + (int)((long)size * leftShards / numShards);
+		mid = Math.max(lo + 3*k, Math.min(hi - 3*k, mid));
 		
-		Map<Integer, Record> unassignedNodes = dataset.toMap();
+		double[] values = new double[size];
+		for (int i = lo; i < hi; i++) values[i - lo] = dataset.getRecord(ids[i]).getValue(att);
+		int[] order = Utilities.argsort(values);
+		int[] sorted = new int[size];
+		for (int i = 0; i < size; i++) sorted[i] = ids[lo + order[i]];
+		System.arraycopy(sorted, 0, ids, lo, size);
 		
-		System.out.println("Total Size: " + unassignedNodes.size());
+		split(dataset, attributes, variance, ids, lo, mid, leftShards, k, shardIds);
+		split(dataset, attributes, variance, ids, mid, hi, numShards - leftShards, k, shardIds);
+	}
+	
+	public static Partition MDAV(Dataset dataset, int k) {
+		if (dataset.numAttributes() == 1) return univariateMicroaggregation(dataset, k);
+		
+		Partition p = new Partition(dataset, k);
+		
+		ActiveRecords unassigned = new ActiveRecords(dataset);
+		KDTree index = new KDTree(dataset);
+		
+		System.out.println("Total Size: " + unassigned.size());
 		
 		int processedRecords = 0;
 		
-		while (unassignedNodes.size() >= (3*k)) {	
+		while (unassigned.size() >= (3*k)) {	
 				
 			//Average Record x (mean)
-			dst.loadMeans();
-			Record avRecord = new Record(dst.numAttributes()); 
-			
-			for (int i = 0; i < dst.numAttributes(); i++) {
-				avRecord.setAttribute(i, dst.getMeanValue(i));
-			}
+			Record avRecord = unassigned.getCentroid();
 			
 			//Most distant record from x (mean)
-			int xR = Distances.mostDistantRecord(avRecord, dataset, unassignedNodes);
+			int xR = Distances.mostDistantRecord(avRecord, dataset, unassigned, getPool());
+			unassigned.remove(xR);
+			index.remove(xR);
 			
 			//Most distant record from x_r	
-			int xS = Distances.mostDistantRecord(dataset.getRecord(xR), dataset, unassignedNodes);
-			
+			int xS = Distances.mostDistantRecord(dataset.getRecord(xR), dataset, unassigned, getPool());
+			unassigned.remove(xS);
+			index.remove(xS);
 			
 			List<Integer> extremeRec = new ArrayList<Integer>();
 			extremeRec.add(xR); extremeRec.add(xS);
 			
-			for (int rec : extremeRec) {
-				unassignedNodes.remove(rec);
-				dst.removeRecord(dataset.getRecord(rec));
-			}
-			
 			//Getting K-1 nearest Records for each extreme records. 2 Groups are created.
 			List<Integer> list = new ArrayList<Integer>();
 			
 			for (int rec : extremeRec) {	
-				list = getNearestRecords(rec, p.getK()-1, dataset, unassignedNodes);
+				list = getNearestRecords(rec, p.getK()-1, dataset, unassigned, index);
 				list.add(rec);
 				p.addGroup(list);
-				
-				for (int i : list) {
-					dst.removeRecord(dataset.getRecord(i));	
-				}
 			}
 			
 			processedRecords += 2*k;
@@ -141,27 +463,38 @@ public class Microaggregation {
 		
 		
 		//End of WHILE, clustering of 3k (or less) remaining records.
-		if (dst.numRecords() <= (3*k -1) && dst.numRecords() >= (2*k)) {
+		if (unassigned.size() <= (3*k -1) && unassigned.size() >= (2*k)) {
 			//Average Record x (mean)
-			Record rMean = new Record(dst.numAttributes()); 
-			for (int i = 0; i < dst.numAttributes(); i++) {
-				rMean.setAttribute(i, dst.getMeanValue(i));
-			}
+			Record rMean = unassigned.getCentroid();
 			
-			int r1 = Distances.mostDistantRecord(rMean, dataset, unassignedNodes);
+			int r1 = Distances.mostDistantRecord(rMean, dataset, unassigned, getPool());
 			
-			List<Integer> list = getNearestRecords(r1, p.getK()-1, dataset, unassignedNodes);
+			unassigned.remove(r1);
+			index.remove(r1);
+			List<Integer> list = getNearestRecords(r1, p.getK()-1, dataset, unassigned, index);
+			list.add(r1);
 			p.addGroup(list);
-			p.addGroup(new ArrayList<Integer>(unassignedNodes.keySet()));
+			p.addGroup(unassigned.toList());
 		} else {
-			p.addGroup(new ArrayList<Integer>(unassignedNodes.keySet()));
+			p.addGroup(unassigned.toList());
 		}
-		
 		return p;
 	}
 
 	
 	public static Dataset MDAV_ID (Dataset dataset, int k) {
+		return MDAV_ID(dataset, k, false, 1);
+	}
+	
+	/**
+	 * Executes MDAV_ID.
+	 * @param dataset the dataset.
+	 * @param k the microaggregation parameter.
+	 * @param projection TRUE to group the records with projectionMicroaggregation instead of MDAV.
+	 * @param shards the number of shards of parallelMDAV, 1 to run a single MDAV.
+	 * @return the perturbed dataset.
+	 */
+	public static Dataset MDAV_ID (Dataset dataset, int k, boolean projection, int shards) {
 		dataset.loadVariances(false);
 		
 		int position = 0;
@@ -171,38 +504,54 @@ public class Microaggregation {
 		}
 		System.out.println("Start MDAV.");
 		
-		Partition kpartition = Microaggregation.MDAV(dataset.getQIDataset(), k);
-		
-		List<Record> microRecords = new ArrayList<Record>();
+		Partition kpartition = kPartition(dataset.getQIDataset(), k, projection, shards);
+		return MDAV_ID(dataset, kpartition);
+	}
+	
+	/**
+	 * Replaces the quasi-identifiers of the records by the centroid of their group.
+	 * @param dataset the dataset.
+	 * @param kpartition the k-partition of the quasi-identifiers of the dataset.
+	 * @return the microaggregated dataset.
+	 */
+	public static Dataset MDAV_ID (final Dataset dataset, Partition kpartition) {
+		final List<Record> microRecords = new ArrayList<Record>();
 		for (int i=0; i<dataset.numRecords(); i++)
 			microRecords.add(new Record(dataset.getRecord(i)));
 		
-		List<Attribute> qiAtts = dataset.getQIAttributeList();
+		final int[] qi = attributeNums(dataset.getQIAttributeList());
 		
 		System.out.println("Start replacing centroid in groups...");
 		
-		for (int i=0; i<kpartition.numGroups(); i++) {
-			List<Integer> recInGroup = kpartition.getGroup(i);			
-			HashMap<Integer, Double> centroids = new HashMap<Integer, Double>();
-			
-			int numAtt = 0;
-			for (Attribute a : qiAtts) {				
-				Double value = SyntheticGenerators.attributeCentroid(a, kpartition.getGroupRecords(i), numAtt);
-				centroids.put(a.getNum(), value);
-				numAtt++;
-			}
-			
-			for (Integer indexRec : recInGroup) {
-				for (Entry<Integer, Double> entry : centroids.entrySet())
-					microRecords.get(indexRec).setAttribute(entry.getKey(), entry.getValue());
+		forEachGroup(kpartition, null, new GroupProcessor() {
+			public void process(List<Integer> recInGroup, Random rnd) {
+				for (int a : qi) {
+					double sum = 0;
+					for (int pos : recInGroup) sum += dataset.getRecord(pos).getValue(a);
+					double centroid = sum / recInGroup.size();
+					
+					for (int pos : recInGroup) microRecords.get(pos).setAttribute(a, centroid);
+				}
 			}
-		}
+		});
 		
 		System.out.println("End of the process.");
 		return new Dataset(microRecords, dataset.getAttributeList());
 	}
 
 	public static Dataset MDAV_SWAP (Dataset dataset, int k) {
+		return MDAV_SWAP(dataset, k, false, 1);
+	}
+	
+	/**
+	 * Executes MDAV_SWAP.
+	 * @param dataset the dataset.
+	 * @param k the microaggregation parameter.
+	 * @param projection TRUE to group the records with projectionMicroaggregation instead of MDAV.
+	 * @param shards the number of shards of parallelMDAV, 1 to run a single MDAV.
+	 * @return the perturbed dataset.
+	 */
+	public static Dataset MDAV_SWAP (Dataset dataset, int k, boolean projection, int shards) {
 		dataset.loadVariances(false);
 		
 		int position = 0;
@@ -212,35 +561,30 @@ public class Microaggregation {
 		}
 		System.out.println("Start MDAV.");
 		
-		Partition kpartition = Microaggregation.MDAV(dataset.getQIDataset(), k);
-		
-		List<Record> microRecords = new ArrayList<Record>();
+		Partition kpartition = kPartition(dataset.getQIDataset(), k, projection, shards);
+		return MDAV_SWAP(dataset, kpartition);
+	}
+	
+	/**
+	 * Swaps the quasi-identifiers of the records within their group.
+	 * @param dataset the dataset.
+	 * @param kpartition the k-partition of the quasi-identifiers of the dataset.
+	 * @return the perturbed dataset.
+	 */
+	public static Dataset MDAV_SWAP (Dataset dataset, Partition kpartition) {
+		final List<Record> microRecords = new ArrayList<Record>();
 		for (int i=0; i<dataset.numRecords(); i++)
 			microRecords.add(new Record(dataset.getRecord(i)));
 		
-		List<Attribute> qiAtts = dataset.getQIAttributeList();
+		final int[] qi = attributeNums(dataset.getQIAttributeList());
 		
 		System.out.println("Start swapping data within groups...");
 		
-		for (int i=0; i<kpartition.numGroups(); i++) {
-			List<Integer> recInGroup = kpartition.getGroup(i);	
-			List<Record> qiDst = new ArrayList<Record>();
-			
-			for (Integer pos : recInGroup) {
-				qiDst.add(dataset.getRecord(pos));
-			}
-			
-			Dataset group = new Dataset(qiDst, dataset.getAttributeList());
-			group = DataShuffling.FishYatesShuffling(group, false);
-			
-			int j = 0;
-			for (Integer pos : kpartition.getGroup(i)) {
-				for (Attribute a : qiAtts)
-					microRecords.get(pos).setAttribute(a.getNum(), Double.valueOf(group.getRecord(j).getAttribute(a.getNum()).toString()));
-				
-				j++;
+		forEachGroup(kpartition, RandomStream.next("MDAV_SWAP"), new GroupProcessor() {
+			public void process(List<Integer> recInGroup, Random rnd) {
+				for (int a : qi) shuffleWithinGroup(microRecords, recInGroup, a, rnd);
 			}
-		}
+		});
 		
 		System.out.println("End of the process.");
 		
@@ -256,35 +600,26 @@ public class Microaggregation {
 			dataset.getRecord(position).setPosDataset(position);
 		}
 		
-		List<Record> microRecords = new ArrayList<Record>();
+		final List<Record> microRecords = new ArrayList<Record>();
 		for (int i=0; i<dataset.numRecords(); i++)
 			microRecords.add(new Record(dataset.getRecord(i)));
+		Dataset microDataset = new Dataset(microRecords, dataset.getAttributeList());
+		
+		final int[] conf = attributeNums(dataset.getConfAttributeList());
 		
 		System.out.println("Start Confidential MDAV + Swapping within groups...");
 		
+		RandomStream rnd = RandomStream.next("IR_SWAP");
+		
+		//each attribute is grouped after the swaps of the previous ones
 		for (Attribute att : dataset.getConfAttributeList()) {
-			Partition kpartition = Microaggregation.MDAV(dataset.getConfidentialDataset(att), k);
-					
-			for (int i=0; i<kpartition.numGroups(); i++) {
-				List<Integer> recInGroup = kpartition.getGroup(i);
-				List<Record> confDst = new ArrayList<Record>();
-				
-				for (Integer pos : recInGroup) {
-					confDst.add(dataset.getRecord(pos));
-				}
-				
-				Dataset group = new Dataset(confDst, dataset.getAttributeList());
-				group = DataShuffling.FishYatesShuffling(group, true);
-								
-				int j = 0;
-				for (Integer pos : kpartition.getGroup(i)) {
-					for (Attribute a : dataset.getConfAttributeList())
-						microRecords.get(pos).setAttribute(a.getNum(), Double.valueOf(group.getRecord(j).getAttribute(a.getNum()).toString()));
-					
-					j++;
+			Partition kpartition = Microaggregation.MDAV(microDataset.getConfidentialDataset(att), k);
+			
+			forEachGroup(kpartition, rnd.split(att.getNum()), new GroupProcessor() {
+				public void process(List<Integer> recInGroup, Random rnd) {
+					for (int a : conf) shuffleWithinGroup(microRecords, recInGroup, a, rnd);
 				}
-			}
-		
+			});
 		}
 		
 		System.out.println("End of the process.");
@@ -292,6 +627,77 @@ public class Microaggregation {
 		return new Dataset(microRecords, dataset.getAttributeList());
 	}
 	
+	private static int[] attributeNums(List<Attribute> atts) {
+		int[] nums = new int[atts.size()];
+		for (int i = 0; i < nums.length; i++) nums[i] = atts.get(i).getNum();
+		return nums;
+	}
+	
+	/**
+	 * Permutes the values of an attribute among the records of a group (Fisher-Yates).
+	 */
+	private static void shuffleWithinGroup(List<Record> records, List<Integer> group, int att, Random rnd) {
+		for (int i = group.size() - 1; i > 0; i--) {
+			int j = rnd.nextInt(i + 1);
+			Record ri = records.get(group.get(i)), rj = records.get(group.get(j));
+			double v = ri.getValue(att);
+			ri.setAttribute(att, rj.getValue(att));
+			rj.setAttribute(att, v);
+		}
+	}
+	
+	/**
+	 * Work done on each group of a partition.
+	 */
+	private interface GroupProcessor {
+		void process(List<Integer> recInGroup, Random rnd);
+	}
+	
+	/**
+	 * Processes the groups of a partition in parallel on the pool of getPool().
+	 * The groups must not share records, as they are processed concurrently.
+	 * Each group gets its own child stream of rnd, so the results do not depend
+	 * on the number of threads.
+	 */
+	private static void forEachGroup(Partition kpartition, RandomStream rnd, GroupProcessor processor) {
+		ForkJoinPool pool = getPool();
+		int numGroups = kpartition.numGroups();
+		int chunk = Math.max(64, numGroups / (4 * pool.getParallelism()));
+		pool.invoke(new GroupsTask(kpartition.getGroups(), 0, numGroups, chunk, rnd, processor));
+	}
+	
+	/**
+	 * Range of groups of a partition.
+	 */
+	private static class GroupsTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private List<List<Integer>> groups;
+		private int from, to, chunk;
+		private RandomStream rnd;
+		private GroupProcessor processor;
+		
+		GroupsTask(List<List<Integer>> groups, int from, int to, int chunk, RandomStream rnd, GroupProcessor processor) {
+			this.groups = groups;
+			this.from = from;
+			this.to = to;
+			this.chunk = chunk;
+			this.rnd = rnd;
+			this.processor = processor;
+		}
+		
+		protected void compute() {
+			if (to - from <= chunk) {
+				for (int g = from; g < to; g++) {
+					processor.process(groups.get(g), (rnd != null) ? rnd.split(g) : null);
+				}
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new GroupsTask(groups, from, mid, chunk, rnd, processor), new GroupsTask(groups, mid, to, chunk, rnd, processor));
+		}
+	}
+	
 	/**
 	 * Executes the microhybrid algorithm.
 	 * @param dataset the dataset to be perturbed.
@@ -301,6 +707,33 @@ public class Microaggregation {
 	 * @return a new perturbed dataset using the microhybrid method.
 	 */
 	public static Dataset microHybrid(Dataset dataset, List<Double> parms, int k, int code, File dirResult) {
+		try {
+			microHybrid(dataset, k, 1, false, 1, dirResult);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		
+		return new Dataset(new ArrayList<Record>(), dataset.getAttributeList());
+	}
+	
+	/**
+	 * Executes the microhybrid algorithm several times, as needed by multiple
+	 * imputation. The partition of the dataset and the statistics of its groups
+	 * are computed once and shared by all the replicates, which are generated in
+	 * parallel. Each replicate z is written directly to dirResult/MHz.data
+	 * (values separated by ", ") and dirResult/MHExcelz.data (values separated
+	 * by tabs) in a single pass over its records.
+	 * 
+	 * The random stream of a group of a replicate only depends on the replicate
+	 * and on the group, so the replicates do not depend on the number of threads.
+	 * @param dataset the dataset to be perturbed.
+	 * @param k the parameter of microaggregation.
+	 * @param replicates the number of replicates.
+	 * @param projection TRUE to group the records with projectionMicroaggregation instead of MDAV.
+	 * @param shards the number of shards of parallelMDAV, 1 to run a single MDAV.
+	 * @param dirResult the directory of the output files.
+	 */
+	public static void microHybrid(final Dataset dataset, int k, int replicates, boolean projection, int shards, final File dirResult) throws IOException {
 		DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
 		
 		System.out.println(dateFormat.format(new Date()));
@@ -311,47 +744,89 @@ public class Microaggregation {
 		
 		dataset.loadVariances(false);
 
-		Partition kpartition = null;
+		final Partition kpartition;
 		
 		if (dataset.getRecord(0).getGroup() > 0) {
 			kpartition = Microaggregation.createGroups(dataset,k);
 		} else {
-			kpartition = Microaggregation.MDAV(dataset, k);
+			kpartition = kPartition(dataset, k, projection, shards);
 		}
 		
 		if (DEBUG) System.out.println(kpartition+"\n\n-- Synthetic data --");
 		
-		//10times Replication.	
-		for (int z = 1; z < 2; z++) {
-			List<Record> c, _c;
-			List<Integer> recInGroup;
-			
-			List<Record> v = new ArrayList<Record>();
-			for (int i=0; i<dataset.numRecords(); i++)
-				v.add(new Record(dataset.numAttributes()));
-				
-			System.out.println("Genering synthetic data...");
-			for (int i=0; i<kpartition.numGroups(); i++) {
-				c  = kpartition.getGroupRecords(i);
-				recInGroup = kpartition.getGroup(i);
-				_c = SyntheticGenerators.syntheticDataGeneration(c, kpartition.getAttributeList(), dataset);
-				
-				for (int j=0; j<recInGroup.size(); j++) {
-					if (DEBUG) System.out.println(recInGroup.get(j)+": "+_c.get(j).toString());
-					_c.get(j).setGroup(i);
-					v.set(recInGroup.get(j), _c.get(j));
+		//statistics of the groups, shared by the replicates
+		int m = dataset.numAttributes();
+		final double[] variances = new double[m];
+		for (int d = 0; d < m; d++) variances[d] = dataset.getVarianceAttribute(d);
+		
+		final List<List<Record>> groupRecords = new ArrayList<List<Record>>(kpartition.numGroups());
+		final List<double[][]> groupRanges = new ArrayList<double[][]>(kpartition.numGroups());
+		for (int i=0; i<kpartition.numGroups(); i++) {
+			List<Record> c = kpartition.getGroupRecords(i);
+			groupRecords.add(c);
+			groupRanges.add(SyntheticGenerators.clusterRanges(c, m));
+		}
+		
+		System.out.println("Genering " + replicates + " replicates of synthetic data...");
+		final RandomStream rnd = RandomStream.next("microHybrid");
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int z = 1; z <= replicates; z++) {
+			final int replicate = z;
+			tasks.add(new Callable<Void>() {
+				public Void call() throws IOException {
+					writeReplicate(dataset, kpartition, groupRecords, groupRanges, variances, rnd.split(replicate), 
+							dirResult.getAbsolutePath() + "/MH" + replicate + ".data", 
+							dirResult.getAbsolutePath() + "/MHExcel" + replicate + ".data");
+					return null;
 				}
-				if (DEBUG) System.out.println("-----------");
-			}
-			
-			new Dataset(v, dataset.getAttributeList()).toFile(dirResult.getAbsolutePath() + "/MH"+z+".data");
-			Utilities.fileConversor(dirResult.getAbsolutePath() + "/MH"+z+".data",dirResult.getAbsolutePath() + "/MHExcel"+z+".data");
+			});
 		}
 		
+		for (Future<Void> result : getPool().invokeAll(tasks)) {
+			try {
+				result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Microaggregation: microhybrid interrupted", e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+				throw new IllegalStateException("Microaggregation: microhybrid failed", e.getCause());
+			}
+		}
 		
 		System.out.println("Mycrohybrid completed. - " + dateFormat.format(new Date()));
+	}
+	
+	/**
+	 * Generates a replicate of the microhybrid synthetic data and writes it to
+	 * its output files.
+	 */
+	private static void writeReplicate(Dataset dataset, Partition kpartition, List<List<Record>> groupRecords, 
+			List<double[][]> groupRanges, double[] variances, RandomStream rnd, String file, String excelFile) throws IOException {
+		Record[] v = new Record[dataset.numRecords()];
 		
-		return new Dataset(new ArrayList<Record>(), dataset.getAttributeList());
+		for (int i=0; i<kpartition.numGroups(); i++) {
+			List<Integer> recInGroup = kpartition.getGroup(i);
+			List<Record> _c = SyntheticGenerators.syntheticDataGeneration(groupRecords.get(i), kpartition.getAttributeList(), 
+					groupRanges.get(i), variances, rnd.split(i));
+			
+			for (int j=0; j<recInGroup.size(); j++) {
+				_c.get(j).setGroup(i);
+				v[recInGroup.get(j)] = _c.get(j);
+			}
+		}
+		
+		RecordWriter writer = new RecordWriter(file, ", ", false, false);
+		RecordWriter excelWriter = new RecordWriter(excelFile, "\t", false, false);
+		try {
+			for (Record rec : v) {
+				writer.write(rec);
+				excelWriter.write(rec);
+			}
+		} finally {
+			writer.close();
+			excelWriter.close();
+		}
 	}
 	
 	private static Partition createGroups(Dataset dataset, int k) {
@@ -398,11 +873,12 @@ public class Microaggregation {
 	
 			
 		System.out.println("Start generating synthetic data...");
+		RandomStream rnd = RandomStream.next("MDAVMicroHybrid");
 		for (int i=0; i<kpartition.numGroups(); i++) {
 			//Positions of records.
 			List<Integer> recInGroup = kpartition.getGroup(i);			
 			c  = kpartition.getGroupRecords(i);
-			_c = SyntheticGenerators.syntheticDataGeneration(c, kpartition.getAttributeList(), dataset);
+			_c = SyntheticGenerators.syntheticDataGeneration(c, kpartition.getAttributeList(), dataset, rnd.split(i));
 				
 			//Replacing the records with the synthetic ones.
 			for (int j=0; j<recInGroup.size(); j++) {
@@ -429,4 +905,23 @@ public class Microaggregation {
 		Microaggregation.binary = binary;
 	}
 
+	/**
+	 * Returns the pool used to parallelize the microaggregation methods, and
+	 * the shuffling of DataShuffling. By default it has one thread per
+	 * available processor.
+	 * @return the pool.
+	 */
+	public static synchronized ForkJoinPool getPool() {
+		if (pool == null) pool = new ForkJoinPool();
+		return pool;
+	}
+
+	/**
+	 * Sets the pool used to parallelize the microaggregation methods.
+	 * @param pool the pool; a pool with a single thread runs them sequentially.
+	 */
+	public static synchronized void setPool(ForkJoinPool pool) {
+		Microaggregation.pool = pool;
+	}
+
 }
@@ -0,0 +1,186 @@
+package cat.urv.intertrust.methods;
+
+import java.io.Serializable;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RectangularCholeskyDecomposition;
+
+import cat.urv.intertrust.data.RandomStream;
+
+/**
+ * Sampler of a zero-mean multivariate normal distribution. The covariance
+ * matrix is factored once, with a Cholesky decomposition that accepts
+ * semidefinite matrices, and the sampler can be reused for any number of
+ * draws.
+ *
+ * The draws are written into column buffers, one per dimension, or into the
+ * rows of a row-major array, and are generated in chunks of records in
+ * parallel on the pool of Microaggregation.
+ * Each chunk draws its standard normal values from its own child stream, so
+ * the draws only depend on the stream given and not on the number of threads.
+ * The standard normal values of a chunk are multiplied by the factor in a
+ * blocked loop that adds them straight into the output, skipping the zeros
+ * of the factor, so a diagonal covariance costs a product per value.
+ */
+public class MultivariateNormalSampler implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	//number of records drawn by each task
+	private static final int CHUNK = 1 << 13;
+	//tolerance of the Cholesky factorization, relative to the largest variance
+	private static final double CHOLESKY_SMALL = 1e-12;
+
+	private double[][] root;	//dimension x rank, root * root^T = covariance
+	private int[][] nonZeros;	//columns of the non-zero entries of each row of root
+	private int rank;
+
+	/**
+	 * Constructor.
+	 * @param covariance the covariance matrix, symmetric positive semidefinite.
+	 */
+	public MultivariateNormalSampler(double[][] covariance) {
+		double maxVariance = 0;
+		for (int i = 0; i < covariance.length; i++) maxVariance = Math.max(maxVariance, covariance[i][i]);
+
+		if (maxVariance == 0) {
+			//no variance, every draw is zero
+			this.root = new double[covariance.length][0];
+			this.rank = 0;
+		} else {
+			this.root = new RectangularCholeskyDecomposition(MatrixUtils.createRealMatrix(covariance), CHOLESKY_SMALL * maxVariance).getRootMatrix().getData();
+			this.rank = root[0].length;
+		}
+
+		this.nonZeros = new int[root.length][];
+		for (int i = 0; i < root.length; i++) {
+			int count = 0;
+			for (int k = 0; k < rank; k++) if (root[i][k] != 0) count++;
+			nonZeros[i] = new int[count];
+			count = 0;
+			for (int k = 0; k < rank; k++) if (root[i][k] != 0) nonZeros[i][count++] = k;
+		}
+	}
+
+	/**
+	 * Returns the dimension of the distribution.
+	 * @return the number of variables drawn.
+	 */
+	public int getDimension() {
+		return root.length;
+	}
+
+	/**
+	 * Draws n values of the distribution into new columns.
+	 * @param n the number of draws.
+	 * @param rnd the random stream.
+	 * @return the values drawn of each variable.
+	 */
+	public double[][] sample(int n, RandomStream rnd) {
+		double[][] out = new double[root.length][n];
+		addSamples(out, rnd);
+		return out;
+	}
+
+	/**
+	 * Adds a draw of the distribution to each position of a set of columns.
+	 * @param out the columns, one per variable, all of the same length.
+	 * @param rnd the random stream.
+	 */
+	public void addSamples(double[][] out, RandomStream rnd) {
+		if (out.length != root.length)
+			throw new IllegalArgumentException("MultivariateNormalSampler: " + out.length + " columns instead of " + root.length);
+		if (out.length == 0 || rank == 0) return;
+
+		int n = out[0].length;
+		int numChunks = (n + CHUNK - 1) / CHUNK;
+		Microaggregation.getPool().invoke(new DrawTask(out, null, n, rnd, 0, numChunks));
+	}
+
+	/**
+	 * Adds a draw of the distribution to each row of a row-major array, such
+	 * as the values of a RecordBlock. The draws are the same as the ones added
+	 * to columns with the same stream.
+	 * @param values the rows, of getDimension() values each, one after the other.
+	 * @param numRows the number of rows.
+	 * @param rnd the random stream.
+	 */
+	public void addSamples(double[] values, int numRows, RandomStream rnd) {
+		if (numRows * root.length > values.length)
+			throw new IllegalArgumentException("MultivariateNormalSampler: " + numRows + " rows do not fit in " + values.length + " values");
+		if (root.length == 0 || rank == 0) return;
+
+		int numChunks = (numRows + CHUNK - 1) / CHUNK;
+		Microaggregation.getPool().invoke(new DrawTask(null, values, numRows, rnd, 0, numChunks));
+	}
+
+	/**
+	 * Draws a chunk of records.
+	 * @param columns the output columns, or null.
+	 * @param rows the output rows, if there are no output columns.
+	 * @param rnd the random stream of the chunk.
+	 * @param from the first record of the chunk.
+	 * @param to the end of the chunk.
+	 */
+	private void drawChunk(double[][] columns, double[] rows, RandomStream rnd, int from, int to) {
+		int size = to - from, dim = root.length;
+
+		//standard normal values of the chunk, one row per factor
+		double[][] z = new double[rank][size];
+		for (int t = 0; t < size; t++) {
+			for (int k = 0; k < rank; k++) z[k][t] = rnd.nextGaussian();
+		}
+
+		if (columns != null) {
+			for (int i = 0; i < dim; i++) {
+				double[] column = columns[i];
+				for (int k : nonZeros[i]) {
+					double c = root[i][k];
+					double[] zk = z[k];
+					for (int t = 0; t < size; t++) column[from + t] += c * zk[t];
+				}
+			}
+		} else {
+			for (int t = 0, pos = from * dim; t < size; t++, pos += dim) {
+				for (int i = 0; i < dim; i++) {
+					for (int k : nonZeros[i]) rows[pos + i] += root[i][k] * z[k][t];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Draws of a range of chunks, split in halves. Chunk c uses the child
+	 * stream c of the stream of the sampling.
+	 */
+	private class DrawTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private double[][] columns;
+		private double[] rows;
+		private int n;
+		private RandomStream rnd;
+		private int from, to;
+
+		DrawTask(double[][] columns, double[] rows, int n, RandomStream rnd, int from, int to) {
+			this.columns = columns;
+			this.rows = rows;
+			this.n = n;
+			this.rnd = rnd;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute() {
+			if (to - from <= 1) {
+				for (int c = from; c < to; c++) {
+					drawChunk(columns, rows, rnd.split(c), c * CHUNK, Math.min(n, (c + 1) * CHUNK));
+				}
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new DrawTask(columns, rows, n, rnd, from, mid), new DrawTask(columns, rows, n, rnd, mid, to));
+		}
+	}
+}
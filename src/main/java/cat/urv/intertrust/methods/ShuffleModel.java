@@ -0,0 +1,367 @@
+package cat.urv.intertrust.methods;
+
+import java.io.*;
+import java.util.*;
+
+import org.apache.commons.math3.linear.LUDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import cat.urv.intertrust.data.Dataset;
+import cat.urv.intertrust.data.RandomStream;
+import cat.urv.intertrust.data.Utilities;
+
+/**
+ * Rank-based shuffling model, fitted once on a dataset and applied to batches
+ * of records with the same attributes. The model holds the marginal
+ * distribution of each attribute, as a set of its quantiles, the correlation
+ * of the percentile ranks of the attributes, the coefficients of the
+ * conditional means of the responses given the predictors and the sampler
+ * of their residuals, which holds the Cholesky factor of their conditional
+ * covariance.
+ *
+ * Applying the model to a batch does not refit it: the normal scores of the
+ * predictors are taken from the marginal distributions of the model, and each
+ * response takes the value of the batch with the rank of its shuffled value.
+ * Updating the model with a batch merges the batch into the marginal
+ * distributions and into the co-moments of the percentile ranks, without
+ * revisiting the previous batches. The model is serializable, so it can be
+ * kept between batches with save and load.
+ */
+public class ShuffleModel implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	//number of quantiles kept of the marginal distribution of each attribute
+	private static final int MARGINAL_POINTS = 1 << 10;
+
+	private int numAtts;
+	private ArrayList<Integer> predictors, responses;
+	private long count;
+	private double[][] marginals;	//sorted quantiles of each attribute
+	private double[] means;			//means of the percentile ranks
+	private double[][] comoments;	//sums of products of the deviations of the percentile ranks
+	private double[][] coefs;		//coefficients of the predictors in the conditional mean of each response
+	private double[][] sigma;		//conditional covariance of the responses
+	private MultivariateNormalSampler residuals;	//Cholesky factor of sigma
+
+	/**
+	 * Constructor of a model fitted on the values of a dataset.
+	 * @param predictors the indexes of the predictors.
+	 * @param responses the indexes of the responses.
+	 * @param columns the values of each attribute.
+	 * @param orders the positions of the values of each attribute in ascending order.
+	 * @param ranks the ranks of the values of each attribute.
+	 */
+	ShuffleModel(List<Integer> predictors, List<Integer> responses, double[][] columns, int[][] orders, double[][] ranks) {
+		this.numAtts = columns.length;
+		this.predictors = new ArrayList<Integer>(predictors);
+		this.responses = new ArrayList<Integer>(responses);
+
+		int n = (numAtts == 0) ? 0 : columns[0].length;
+		this.count = n;
+		this.marginals = new double[numAtts][];
+		for (int i = 0; i < numAtts; i++) marginals[i] = quantiles(columns[i], orders[i]);
+
+		//Spearman's correlation is the Pearson's correlation of the ranks
+		double[] rankMeans = new double[numAtts];
+		double[][] rankComoments = DataShuffling.comoments(ranks, rankMeans);
+		refit(DataShuffling.correlation(rankComoments));
+
+		//the percentile ranks are (rank - 0.5) / n
+		this.means = new double[numAtts];
+		this.comoments = new double[numAtts][numAtts];
+		for (int i = 0; i < numAtts; i++) {
+			means[i] = (rankMeans[i] - 0.5) / n;
+			for (int j = 0; j < numAtts; j++) comoments[i][j] = rankComoments[i][j] / ((double)n * n);
+		}
+	}
+
+	/**
+	 * Fits a model on a dataset, with the predictors and responses of its attributes.
+	 * @param dataset the dataset.
+	 * @return the model.
+	 */
+	public static ShuffleModel fit(Dataset dataset) {
+		int numAtts = dataset.getAttributeList().size();
+		final double[][] columns = dataset.toColumns();
+		final int[][] orders = new int[numAtts][];
+		final double[][] ranks = new double[numAtts][];
+		DataShuffling.forEachColumn(numAtts, new DataShuffling.ColumnProcessor() {
+			public void process(int i) {
+				orders[i] = Utilities.argsort(columns[i]);
+				ranks[i] = DataShuffling.ranks(columns[i], orders[i]);
+			}
+		});
+
+		return new ShuffleModel(dataset.getPredictors(), dataset.getResponses(), columns, orders, ranks);
+	}
+
+	/**
+	 * Shuffles the responses of a batch of records with the model. The batch
+	 * keeps the values of each response, in a different order.
+	 * @param batch the batch, with the attributes of the model.
+	 * @return the batch, with its responses shuffled.
+	 */
+	public Dataset apply(Dataset batch) {
+		checkAttributes(batch);
+		final int n = batch.numRecords();
+		final double[][] columns = batch.toColumns();
+
+		//normal scores of the predictors in the marginal distributions of the model
+		final double[][] scores = new double[numAtts][];
+		DataShuffling.forEachColumn(predictors.size(), new DataShuffling.ColumnProcessor() {
+			public void process(int i) {
+				int att = predictors.get(i);
+				double[] score = new double[n];
+				for (int t = 0; t < n; t++) score[t] = DataShuffling.qnorm(percentile(marginals[att], columns[att][t]));
+				scores[att] = score;
+			}
+		});
+
+		final double[][] yStar = conditionalMeans(scores, n);
+		if (yStar.length == 0) return batch;
+		addResiduals(yStar, RandomStream.next("ShuffleModel"));
+
+		//each response takes the value of the batch with the rank of its shuffled value
+		DataShuffling.forEachColumn(yStar.length, new DataShuffling.ColumnProcessor() {
+			public void process(int i) {
+				int att = responses.get(i);
+				DataShuffling.reverseMap(columns[att], Utilities.argsort(columns[att]), yStar[i]);
+			}
+		});
+
+		batch.setAttributes(responses, yStar);
+		return batch;
+	}
+
+	/**
+	 * Updates the model with a batch of records: its values are merged into
+	 * the marginal distributions and its percentile ranks into the
+	 * correlation, and the conditional distribution of the responses is
+	 * recomputed. The cost is linear in the size of the batch.
+	 * @param batch the batch, with the attributes of the model.
+	 */
+	public void update(Dataset batch) {
+		checkAttributes(batch);
+		final int n = batch.numRecords();
+		if (n == 0) return;
+		final double[][] columns = batch.toColumns();
+
+		//percentile ranks in the current marginal distributions and quantiles of the batch
+		final double[][] percentiles = new double[numAtts][];
+		final double[][] batchMarginals = new double[numAtts][];
+		DataShuffling.forEachColumn(numAtts, new DataShuffling.ColumnProcessor() {
+			public void process(int i) {
+				double[] p = new double[n];
+				for (int t = 0; t < n; t++) p[t] = percentile(marginals[i], columns[i][t]);
+				percentiles[i] = p;
+				batchMarginals[i] = quantiles(columns[i], Utilities.argsort(columns[i]));
+			}
+		});
+
+		double[] batchMeans = new double[numAtts];
+		double[][] batchComoments = DataShuffling.comoments(percentiles, batchMeans);
+
+		//pairwise merge of the co-moments
+		double total = count + n;
+		double[] delta = new double[numAtts];
+		for (int i = 0; i < numAtts; i++) delta[i] = batchMeans[i] - means[i];
+		for (int i = 0; i < numAtts; i++) {
+			for (int j = 0; j < numAtts; j++) {
+				comoments[i][j] += batchComoments[i][j] + delta[i] * delta[j] * count * n / total;
+			}
+			means[i] += delta[i] * n / total;
+		}
+
+		for (int i = 0; i < numAtts; i++) {
+			marginals[i] = mergeQuantiles(marginals[i], count, batchMarginals[i], n);
+		}
+		count += n;
+
+		refit(DataShuffling.correlation(comoments));
+	}
+
+	/**
+	 * Returns the number of records the model has been fitted on.
+	 * @return the number of records.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the conditional covariance of the normal scores of the responses
+	 * given the predictors.
+	 * @return the covariance matrix.
+	 */
+	public double[][] getSigma() {
+		return sigma;
+	}
+
+	/**
+	 * Writes the model to a file.
+	 * @param file the file.
+	 */
+	public void save(File file) throws IOException {
+		ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeObject(this);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Reads a model written by save.
+	 * @param file the file.
+	 * @return the model.
+	 */
+	public static ShuffleModel load(File file) throws IOException {
+		ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			return (ShuffleModel)in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("ShuffleModel: invalid model in " + file, e);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Computes the conditional means of the normal scores of the responses.
+	 * @param scores the normal scores of each attribute; only the ones of the predictors are used.
+	 * @param n the number of records.
+	 * @return the conditional mean of each response.
+	 */
+	double[][] conditionalMeans(final double[][] scores, final int n) {
+		final double[][] yStar = new double[responses.size()][];
+		DataShuffling.forEachColumn(yStar.length, new DataShuffling.ColumnProcessor() {
+			public void process(int i) {
+				double[] y = new double[n];
+				for (int j = 0; j < coefs[i].length; j++) {
+					double c = coefs[i][j];
+					double[] z = scores[predictors.get(j)];
+					for (int t = 0; t < n; t++) y[t] += c * z[t];
+				}
+				yStar[i] = y;
+			}
+		});
+		return yStar;
+	}
+
+	/**
+	 * Adds to the conditional means normal residuals with covariance sigma.
+	 * @param yStar the conditional mean of each response.
+	 * @param rnd the random stream of the residuals.
+	 */
+	void addResiduals(double[][] yStar, RandomStream rnd) {
+		residuals.addSamples(yStar, rnd);
+	}
+
+	/**
+	 * Computes the conditional distribution of the responses given the
+	 * predictors from the correlation of the percentile ranks.
+	 */
+	private void refit(RealMatrix corRanks) {
+		for (int i = 0; i < corRanks.getRowDimension(); i++) {
+			for (int j = 0; j < corRanks.getColumnDimension(); j++) {
+				double entry = corRanks.getEntry(i, j);
+
+				entry = 2 * Math.sin((Math.PI*entry)/6);
+				corRanks.setEntry(i, j, entry);
+			}
+		}
+
+		RealMatrix pxx = DataShuffling.reduceMatrix(responses, responses, corRanks);
+		RealMatrix s = pxx;
+		coefs = new double[responses.size()][predictors.size()];
+		if (!predictors.isEmpty()) {
+			RealMatrix pxs = DataShuffling.reduceMatrix(responses, predictors, corRanks);
+			RealMatrix psx = DataShuffling.reduceMatrix(predictors, responses, corRanks);
+			RealMatrix pssinv = new LUDecomposition(DataShuffling.reduceMatrix(predictors, predictors, corRanks)).getSolver().getInverse();
+
+			RealMatrix pxsPssinv = pxs.multiply(pssinv);
+			for (int i = 0; i < coefs.length; i++) coefs[i] = pxsPssinv.getRow(i);
+			s = pxx.subtract(pxsPssinv.multiply(psx));
+		}
+
+		sigma = s.getData();
+		residuals = new MultivariateNormalSampler(sigma);
+	}
+
+	private void checkAttributes(Dataset batch) {
+		if (batch.getAttributeList().size() != numAtts)
+			throw new IllegalArgumentException("ShuffleModel: the batch has " + batch.getAttributeList().size() + " attributes instead of " + numAtts);
+	}
+
+	/**
+	 * Returns the quantiles of the values of an attribute, at most
+	 * MARGINAL_POINTS of them, evenly spaced in rank. NaN values are ignored.
+	 */
+	private static double[] quantiles(double[] column, int[] order) {
+		int n = column.length;
+		while (n > 0 && Double.isNaN(column[order[n - 1]])) n--;
+
+		int q = Math.min(n, MARGINAL_POINTS);
+		double[] quantiles = new double[q];
+		for (int i = 0; i < q; i++) {
+			quantiles[i] = column[order[(int)((i + 0.5) * n / q)]];
+		}
+		return quantiles;
+	}
+
+	/**
+	 * Merges the quantiles of two sets of values into the quantiles of their
+	 * union, each quantile weighted by the size of its set.
+	 */
+	private static double[] mergeQuantiles(double[] a, double countA, double[] b, double countB) {
+		if (a.length == 0) return b;
+		if (b.length == 0) return a;
+
+		int q = Math.min(MARGINAL_POINTS, a.length + b.length);
+		double wa = countA / a.length, wb = countB / b.length, total = countA + countB;
+		double[] merged = new double[q];
+
+		int i = 0, j = 0, k = 0;
+		double cum = 0, value = 0;
+		while (k < q && (i < a.length || j < b.length)) {
+			if (j >= b.length || (i < a.length && a[i] <= b[j])) {
+				value = a[i++];
+				cum += wa;
+			} else {
+				value = b[j++];
+				cum += wb;
+			}
+			while (k < q && cum >= (k + 0.5) * total / q) merged[k++] = value;
+		}
+		//rounding of the cumulated weight
+		while (k < q) merged[k++] = value;
+
+		return merged;
+	}
+
+	/**
+	 * Returns the percentile rank of a value in a marginal distribution: its
+	 * mid-rank among the quantiles, as (rank - 0.5) / n, so it is in (0, 1).
+	 * Missing values are taken as the median.
+	 */
+	private static double percentile(double[] quantiles, double value) {
+		int q = quantiles.length;
+		if (q == 0 || Double.isNaN(value)) return 0.5;
+
+		//number of quantiles lower than the value, and not greater than it
+		int lo = 0, hi = q;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (quantiles[mid] < value) lo = mid + 1; else hi = mid;
+		}
+		int lower = lo;
+		hi = q;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (quantiles[mid] <= value) lo = mid + 1; else hi = mid;
+		}
+
+		return ((lower + lo) / 2.0 + 0.5) / (q + 1);
+	}
+}
@@ -80,41 +80,67 @@ public class SyntheticGenerators {
 	/**
 	 * Given a list of records, returns a synthetic list of records.
 	 * @param recordList list of records to be perturbed.
-	 * @param t parameter between 0 and 1 (see the paper).
 	 * @param attrList the list of attributes the records have. 
+	 * @param dataset the dataset.
+	 * @param r the random generator.
 	 * @return synthetic list of records.
 	 */
-	public static List<Record> syntheticDataGeneration(List<Record> recordList, List<Attribute> attrList, Dataset dataset) {
-		List<Record> _c = new ArrayList<Record>();
-		Dataset c = new Dataset(recordList, attrList);
-		c.loadVariances(false);
-		
-		Record _x;
+	public static List<Record> syntheticDataGeneration(List<Record> recordList, List<Attribute> attrList, Dataset dataset, Random r) {
 		int n = attrList.size();
-		int l = 0;
-		
-		List<List<String>> clusterValues = new ArrayList<List<String>>();
-		Map<String, Double> maxDistances = new HashMap<String, Double>(); 
+		double[] varV = new double[n];
+		for (int l = 0; l < n; l++) varV[l] = dataset.getVarianceAttribute(l);
 		
-		for (Attribute a: attrList) {
-			clusterValues.add(c.getAttributeValues(l));
-			for (String value : clusterValues.get(l)) {
-				if (!maxDistances.containsKey(value))
-					maxDistances.put(value, maxDistance(value, a, c.getAttributeValues(l), dataset.getVarianceAttribute(l)));
+		return syntheticDataGeneration(recordList, attrList, clusterRanges(recordList, n), varV, r);
+	}
+	
+	/**
+	 * Returns the range of the values of each attribute in a cluster.
+	 * @param recordList the records of the cluster.
+	 * @param numAttributes the number of attributes the records have.
+	 * @return the minimum values of the attributes, in the first row, and the maximum ones, in the second row.
+	 */
+	public static double[][] clusterRanges(List<Record> recordList, int numAttributes) {
+		double[] minV = new double[numAttributes], maxV = new double[numAttributes];
+		for (int l = 0; l < numAttributes; l++) {
+			minV[l] = Double.POSITIVE_INFINITY;
+			maxV[l] = Double.NEGATIVE_INFINITY;
+			for (Record x : recordList) {
+				minV[l] = Math.min(minV[l], x.getValue(l));
+				maxV[l] = Math.max(maxV[l], x.getValue(l));
 			}
-			
-			l++;
 		}
+		return new double[][] {minV, maxV};
+	}
+	
+	/**
+	 * Given a list of records and the statistics of their cluster, returns a
+	 * synthetic list of records. The statistics can be computed once and used
+	 * for several synthetic lists.
+	 * @param recordList list of records to be perturbed.
+	 * @param attrList the list of attributes the records have. 
+	 * @param ranges the range of the values of each attribute in the cluster, as given by clusterRanges.
+	 * @param varV the variance of each attribute in the dataset.
+	 * @param r the random generator.
+	 * @return synthetic list of records.
+	 */
+	public static List<Record> syntheticDataGeneration(List<Record> recordList, List<Attribute> attrList, double[][] ranges, double[] varV, Random r) {
+		List<Record> _c = new ArrayList<Record>(recordList.size());
+		
+		Record _x;
+		int n = attrList.size();
+		int l = 0;
+		double[] minV = ranges[0], maxV = ranges[1];
 		
 		for (Record x: recordList) {
 			_x = new Record(n);
 			l=0;
 			for (Attribute a: attrList){
 				if (a.isConfidential()) {
-					_x.setAttribute(l, hybridAttribute(x.getAttribute(l).toString(), clusterValues.get(l), a, dataset.getVarianceAttribute(l), 
-							maxDistances.get(x.getAttribute(l).toString())));
+					double value = x.getValue(l);
+					_x.setAttribute(l, hybridAttribute(value, minV[l], maxV[l], varV[l], 
+							maxDistance(value, minV[l], maxV[l], varV[l]), r));
 				}
-				else _x.setAttribute(l, Double.valueOf(x.getAttribute(l).toString()));
+				else _x.setAttribute(l, x.getValue(l));
 				
 				l++;
 			}
@@ -125,53 +151,47 @@ public class SyntheticGenerators {
 	}
 	
 	/**
-	 * Return an hybrid value of a given attribute value.
+	 * Return an hybrid value of a given attribute value: a uniform value in the
+	 * range of the cluster at SSE-distance at most maxDistance from the given
+	 * one. As the SSE-distance between two values of the attribute is
+	 * |x1-x2|/(2*sqrt(variance)), those values are an interval around the
+	 * value, which is sampled directly.
 	 * @param value the attribute value to make an hybrid value.
-	 * @param attrValues list of possible values the attribute can take.
-	 * @param attr the attribute.
-	 * @param t parameter between 0 and 1 (see the paper).
+	 * @param minV the minimum value of the attribute in the cluster.
+	 * @param maxV the maximum value of the attribute in the cluster.
+	 * @param varAttribute the variance of the attribute.
+	 * @param maxDistance the maximum SSE-distance of the hybrid value.
+	 * @param r the random generator.
 	 * @return  an hybrid value of a given attribute value.
 	 */
-	private static double hybridAttribute(String value, List<String> attrValues, Attribute attr, double varAttribute, double maxDistance){
-		
-		double d = Double.MAX_VALUE;
-		double maxV, minV;
-		List<Double> aux;
-		
-		Random r = new Random(System.nanoTime());
-		double doubleHybridValue = 0;
-		double dmax = maxDistance; 
-		
-		aux = Utilities.listStringToDouble(attrValues);
-		maxV = Utilities.max(aux);
-		minV = Utilities.min(aux);
-		
-		while (d > dmax) {
-			doubleHybridValue = r.nextDouble()*(maxV-minV)+minV;				
-			d = Distances.SSE_AttrValue(Double.valueOf(value), doubleHybridValue, attr, attrValues, varAttribute);
+	private static double hybridAttribute(double value, double minV, double maxV, double varAttribute, double maxDistance, Random r){
+		double lo = minV, hi = maxV;
+		
+		//with no variance every value is at distance 0
+		if (varAttribute != 0) {
+			double radius = 2 * Math.sqrt(varAttribute) * maxDistance;
+			lo = Math.max(minV, value - radius);
+			hi = Math.min(maxV, value + radius);
 		}
 		
-		return doubleHybridValue;
-
+		return r.nextDouble()*(hi-lo)+lo;
 	}
 	
 	/**
-	 * Returns the maximum distance between an attribute value and the values taken by attribute.
+	 * Returns the maximum distance between an attribute value and the values
+	 * taken by the attribute in the cluster. As the SSE-distance between two
+	 * values is |x1-x2|/(2*sqrt(variance)), it is the distance to the minimum
+	 * or to the maximum value.
 	 * @param value the attribute value.
-	 * @param attribute the attribute.
-	 * @param attrValues list of possible values the attribute can take.
+	 * @param minV the minimum value of the attribute in the cluster.
+	 * @param maxV the maximum value of the attribute in the cluster.
+	 * @param varAttribute the variance of the attribute.
 	 * @return the maximum distance between an attribute value and the values taken by attribute.
 	 */
-	private static double maxDistance(String value, Attribute attribute, List<String> attrValues, double varAttribute) {
-		double max = 0, sse;
-		
-		for (String s: attrValues) {
-			sse = Distances.SSE_AttrValue(Double.valueOf(value), Double.valueOf(s), attribute, attrValues, varAttribute);	
-			if (sse > max) max = sse;
-		}
-			
-		return max;
+	private static double maxDistance(double value, double minV, double maxV, double varAttribute) {
+		if (varAttribute == 0) return 0;
 		
+		return Math.max(value - minV, maxV - value) / (2 * Math.sqrt(varAttribute));
 	}
 	
 }